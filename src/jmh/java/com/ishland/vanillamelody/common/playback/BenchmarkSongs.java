@@ -0,0 +1,196 @@
+package com.ishland.vanillamelody.common.playback;
+
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Songs shared by the benchmarks, either generated or read from a directory of midi files
+ */
+public class BenchmarkSongs {
+
+    public static final String DENSE = "dense";
+    public static final String TUNING = "tuning";
+    public static final String LIBRARY = "library";
+
+    private static final int RESOLUTION = 480;
+    // at the default tempo of 120 bpm
+    private static final int TICKS_PER_SECOND = RESOLUTION * 2;
+    private static final int SONG_SECONDS = 60;
+
+    /**
+     * Points the game directory at a temporary directory unless one is set already, so the config and caches
+     * can be used without a game
+     */
+    public static synchronized void useTemporaryGameDir() throws IOException {
+        if (System.getProperty("vanillamelody.gameDir") == null) {
+            System.setProperty("vanillamelody.gameDir", Files.createTempDirectory("vanillamelody-jmh").toString());
+        }
+    }
+
+    /**
+     * @param corpus {@link #DENSE}, {@link #TUNING}, {@link #LIBRARY} or a directory searched for midi files
+     * @return contents of the songs
+     */
+    public static ReferenceArrayList<byte[]> corpus(String corpus) throws IOException, InvalidMidiDataException {
+        final ReferenceArrayList<byte[]> songs = new ReferenceArrayList<>();
+        switch (corpus) {
+            case DENSE -> songs.add(dense(1));
+            case TUNING -> songs.add(tuning(1));
+            case LIBRARY -> {
+                for (int i = 0; i < 1000; i++) {
+                    songs.add(librarySong(i));
+                }
+            }
+            default -> {
+                try (Stream<Path> files = Files.walk(Path.of(corpus))) {
+                    for (Path file : (Iterable<Path>) files.filter(path -> path.toString().endsWith(".mid")).sorted()::iterator) {
+                        songs.add(Files.readAllBytes(file));
+                    }
+                }
+                if (songs.isEmpty()) throw new IOException("No midi files in " + corpus);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Every channel plays chords on every sixteenth note with continuous pitch bends and expression changes
+     */
+    public static byte[] dense(long seed) throws InvalidMidiDataException, IOException {
+        final Random random = new Random(seed);
+        final Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        final int step = TICKS_PER_SECOND / 16;
+        for (int channel = 0; channel < 16; channel++) {
+            final Track track = sequence.createTrack();
+            track.add(event(0, ShortMessage.PROGRAM_CHANGE, channel, channel * 8, 0));
+            track.add(event(0, ShortMessage.CONTROL_CHANGE, channel, 7, 100));
+            track.add(event(0, ShortMessage.CONTROL_CHANGE, channel, 10, channel * 8));
+            final int[] chord = new int[3];
+            for (long tick = 0; tick < (long) SONG_SECONDS * TICKS_PER_SECOND; tick += step) {
+                for (int i = 0; i < chord.length; i++) {
+                    if (chord[i] != 0) track.add(event(tick, ShortMessage.NOTE_OFF, channel, chord[i], 0));
+                    chord[i] = channel == 9 ? 35 + random.nextInt(47) : 24 + random.nextInt(84);
+                    track.add(event(tick, ShortMessage.NOTE_ON, channel, chord[i], 40 + random.nextInt(88)));
+                }
+                final int bend = 8192 + (int) (Math.sin(tick / (double) TICKS_PER_SECOND) * 4000);
+                track.add(event(tick + step / 2, ShortMessage.PITCH_BEND, channel, bend & 0x7F, bend >> 7));
+                track.add(event(tick + step / 2, ShortMessage.CONTROL_CHANGE, channel, 11, 64 + random.nextInt(64)));
+            }
+        }
+        return write(sequence);
+    }
+
+    /**
+     * Melodies retuned by a real-time single note tuning change every eighth note and a scale tuning every second
+     */
+    public static byte[] tuning(long seed) throws InvalidMidiDataException, IOException {
+        final Random random = new Random(seed);
+        final Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        final Track conductor = sequence.createTrack();
+        final int step = TICKS_PER_SECOND / 8;
+        for (long tick = 0; tick < (long) SONG_SECONDS * TICKS_PER_SECOND; tick += step) {
+            // F0 7F <device> 08 02 <program> <count> [<key> <semitone> <cents msb> <cents lsb>]... F7
+            final int count = 8;
+            final byte[] data = new byte[8 + count * 4];
+            data[0] = (byte) SysexMessage.SYSTEM_EXCLUSIVE;
+            data[1] = 0x7F;
+            data[2] = 0x7F;
+            data[3] = 0x08;
+            data[4] = 0x02;
+            data[5] = 0;
+            data[6] = count;
+            for (int i = 0; i < count; i++) {
+                final int key = 36 + random.nextInt(60);
+                data[7 + i * 4] = (byte) key;
+                data[8 + i * 4] = (byte) key;
+                data[9 + i * 4] = (byte) random.nextInt(128);
+                data[10 + i * 4] = (byte) random.nextInt(128);
+            }
+            data[data.length - 1] = (byte) ShortMessage.END_OF_EXCLUSIVE;
+            conductor.add(new MidiEvent(new SysexMessage(data, data.length), tick));
+            if (tick % TICKS_PER_SECOND == 0) {
+                // F0 7F <device> 08 08 <channel mask> <12 offsets around 64> F7
+                final byte[] scale = new byte[21];
+                scale[0] = (byte) SysexMessage.SYSTEM_EXCLUSIVE;
+                scale[1] = 0x7F;
+                scale[2] = 0x7F;
+                scale[3] = 0x08;
+                scale[4] = 0x08;
+                scale[5] = 0x03;
+                scale[6] = 0x7F;
+                scale[7] = 0x7F;
+                for (int i = 0; i < 12; i++) {
+                    scale[8 + i] = (byte) (64 - 16 + random.nextInt(32));
+                }
+                scale[20] = (byte) ShortMessage.END_OF_EXCLUSIVE;
+                conductor.add(new MidiEvent(new SysexMessage(scale, scale.length), tick));
+            }
+        }
+        for (int channel = 0; channel < 4; channel++) {
+            final Track track = sequence.createTrack();
+            track.add(event(0, ShortMessage.PROGRAM_CHANGE, channel, channel * 16, 0));
+            int key = 0;
+            for (long tick = 0; tick < (long) SONG_SECONDS * TICKS_PER_SECOND; tick += step) {
+                if (key != 0) track.add(event(tick, ShortMessage.NOTE_OFF, channel, key, 0));
+                key = 36 + random.nextInt(60);
+                track.add(event(tick, ShortMessage.NOTE_ON, channel, key, 100));
+            }
+        }
+        return write(sequence);
+    }
+
+    /**
+     * A short, distinct song, like the bulk of a large song library
+     */
+    public static byte[] librarySong(int index) throws InvalidMidiDataException, IOException {
+        final Random random = new Random(index);
+        final Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        final Track track = sequence.createTrack();
+        final byte[] title = ("Song " + index).getBytes(StandardCharsets.ISO_8859_1);
+        track.add(new MidiEvent(new MetaMessage(0x03, title, title.length), 0));
+        track.add(event(0, ShortMessage.PROGRAM_CHANGE, 0, index % 128, 0));
+        for (int i = 0; i < 32; i++) {
+            final int key = 48 + random.nextInt(36);
+            track.add(event((long) i * RESOLUTION / 2, ShortMessage.NOTE_ON, 0, key, 100));
+            track.add(event((long) (i + 1) * RESOLUTION / 2, ShortMessage.NOTE_OFF, 0, key, 0));
+        }
+        return write(sequence);
+    }
+
+    public static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static MidiEvent event(long tick, int command, int channel, int data1, int data2) throws InvalidMidiDataException {
+        final MidiMessage message = new ShortMessage(command, channel, data1, data2);
+        return new MidiEvent(message, tick);
+    }
+
+    private static byte[] write(Sequence sequence) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.ishland.vanillamelody.common.playback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps random notes over the whole key and pitch bend range, one operation is one note
+ * <p>
+ * The baseline variants compute every note without the lookup tables.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(NoteUtilBenchmark.NOTES)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteUtilBenchmark {
+
+    static final int NOTES = 1024;
+
+    private final byte[] instruments = new byte[NOTES];
+    private final short[] keys = new short[NOTES];
+    private final short[] pitches = new short[NOTES];
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        for (int i = 0; i < NOTES; i++) {
+            instruments[i] = (byte) random.nextInt(16);
+            // midi keys shifted by octave modifiers of up to two octaves
+            keys[i] = (short) (random.nextInt(128) + (random.nextInt(5) - 2) * 12);
+            pitches[i] = (short) (random.nextInt(401) - 200);
+        }
+    }
+
+    @Benchmark
+    public void soundId(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.getSoundId(instruments[i], keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void warpNameOutOfRange(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.warpNameOutOfRange(instruments[i], keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void octaveSuffix(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.getOctaveSuffix(keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void octaveSuffixBaseline(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.computeOctaveSuffix(keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void pitchInOctave(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.getPitchInOctave(keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void pitchInOctaveBaseline(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.computePitchInOctave(keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void pitchOnBaseOctave(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.getPitchOnBaseOctave(keys[i], pitches[i]));
+        }
+    }
+
+    @Benchmark
+    public void pitchOnBaseOctaveBaseline(Blackhole blackhole) {
+        for (int i = 0; i < NOTES; i++) {
+            blackhole.consume(NoteUtil.computePitchOnBaseOctave(keys[i], pitches[i]));
+        }
+    }
+
+}
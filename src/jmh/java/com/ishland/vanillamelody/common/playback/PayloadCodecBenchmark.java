@@ -0,0 +1,105 @@
+package com.ishland.vanillamelody.common.playback;
+
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes transferred songs with each {@link PayloadCodec}, cycling through the corpus
+ * <p>
+ * Decoding consumes the payload in transfer chunks like the client does. The compression ratio of the corpus
+ * is printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+    @Param({BenchmarkSongs.LIBRARY, BenchmarkSongs.DENSE, BenchmarkSongs.TUNING})
+    public String corpus;
+
+    @Param({"RAW", "DEFLATE"})
+    public PayloadCodec codec;
+
+    private ReferenceArrayList<byte[]> songs;
+    private ReferenceArrayList<byte[]> payloads;
+    private int cursor = 0;
+
+    @Setup
+    public void setup() throws IOException, InvalidMidiDataException {
+        songs = BenchmarkSongs.corpus(corpus);
+        payloads = new ReferenceArrayList<>(songs.size());
+        long rawBytes = 0L;
+        long encodedBytes = 0L;
+        for (byte[] song : songs) {
+            final byte[] payload = encode(codec, song);
+            payloads.add(payload);
+            rawBytes += song.length;
+            encodedBytes += payload.length;
+        }
+        System.out.println("%s corpus %s: %d -> %d bytes (%.1f%%)".formatted(
+                codec, corpus, rawBytes, encodedBytes, encodedBytes * 100.0 / rawBytes));
+    }
+
+    private static byte[] encode(PayloadCodec codec, byte[] song) {
+        return codec == PayloadCodec.DEFLATE ? PayloadCodec.deflate(song) : song;
+    }
+
+    private int next() {
+        final int index = cursor;
+        cursor = cursor + 1 < songs.size() ? cursor + 1 : 0;
+        return index;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return encode(codec, songs.get(next()));
+    }
+
+    @Benchmark
+    public byte[] decode() throws DataFormatException {
+        final int index = next();
+        final byte[] payload = payloads.get(index);
+        final byte[] data = new byte[songs.get(index).length];
+        final Inflater inflater = codec == PayloadCodec.DEFLATE ? new Inflater() : null;
+        try {
+            int decoded = 0;
+            for (int offset = 0; offset < payload.length; offset += ServerFileTransferManager.CHUNK_SIZE) {
+                final int chunkLength = Math.min(ServerFileTransferManager.CHUNK_SIZE, payload.length - offset);
+                if (inflater != null) {
+                    inflater.setInput(payload, offset, chunkLength);
+                    int inflated;
+                    while (decoded < data.length && (inflated = inflater.inflate(data, decoded, data.length - decoded)) > 0) {
+                        decoded += inflated;
+                    }
+                } else {
+                    System.arraycopy(payload, offset, data, decoded, chunkLength);
+                    decoded += chunkLength;
+                }
+            }
+            if (decoded != data.length) throw new IllegalStateException("Decoded %d of %d bytes".formatted(decoded, data.length));
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+        return data;
+    }
+
+}
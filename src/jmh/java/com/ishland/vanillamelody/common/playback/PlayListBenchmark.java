@@ -0,0 +1,74 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans a generated song library, spread over directories of 1000 files each
+ * <p>
+ * {@link #scan()} starts from the persisted song index like a server start, {@link #rescan()} takes over
+ * the previous playlist like a reload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class PlayListBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    private Path directory;
+    private PlayList previous;
+
+    @Setup
+    public void setup() throws IOException, InvalidMidiDataException {
+        BenchmarkSongs.useTemporaryGameDir();
+        Config.LAZY_SONG_LOADING = lazy;
+        directory = Files.createTempDirectory("vanillamelody-jmh-songs");
+        for (int i = 0; i < files; i++) {
+            final Path file = directory.resolve(Integer.toString(i / 1000)).resolve("song-" + i + ".mid");
+            Files.createDirectories(file.getParent());
+            Files.write(file, BenchmarkSongs.librarySong(i));
+        }
+        previous = PlayList.scan(directory.toFile());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkSongs.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public PlayList scan() {
+        return PlayList.scan(directory.toFile());
+    }
+
+    @Benchmark
+    public PlayList rescan() {
+        return PlayList.scan(directory.toFile(), previous);
+    }
+
+}
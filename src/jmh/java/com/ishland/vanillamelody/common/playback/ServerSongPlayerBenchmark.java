@@ -0,0 +1,83 @@
+package com.ishland.vanillamelody.common.playback;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.Vec3d;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the packets a station sends, without players to send them to
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerSongPlayerBenchmark {
+
+    private static final int SYNC_ID = 1;
+
+    private final ReferenceArrayList<PlayList.SongInfo> songs = new ReferenceArrayList<>();
+    private final Identifier sound = NoteUtil.getSoundId((byte) 0, (short) 45, (short) 0);
+    private final Vec3d playerPos = new Vec3d(128.5, 64.0, -32.5);
+    private final PacketByteBuf out = new PacketByteBuf(Unpooled.buffer(64));
+
+    @Setup
+    public void setup() throws IOException, InvalidMidiDataException {
+        for (int i = 0; i < 16; i++) {
+            songs.add(new PlayList.SongInfo(BenchmarkSongs.librarySong(i), "song-" + i + ".mid"));
+        }
+    }
+
+    @Benchmark
+    public int sequenceChange() {
+        final PacketByteBuf buf = ServerSongPlayer.createSequenceChangeBuf(SYNC_ID, songs.get(0).sha256(), 123_456L, 98_765_432L, 7);
+        final int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public int upcoming() {
+        final PacketByteBuf buf = ServerSongPlayer.createUpcomingBuf(SYNC_ID, songs, 3, 8);
+        final int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public int clock() {
+        final PacketByteBuf buf = ServerSongPlayer.createClockBuf(SYNC_ID, 7, ServerSongPlayer.nowMicros(), 98_765_432L);
+        final int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    /**
+     * Server side playback, one sound packet per note and player, serialized as the network stack would
+     */
+    @Benchmark
+    public int note() {
+        final Vec3d pos = NoteUtil.stereoPan(playerPos, 37.5f, 0.25f);
+        out.clear();
+        ServerSongPlayer.createNotePacket(sound, pos, 0.8f, 1.2f).write(out);
+        return out.writerIndex();
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.ishland.vanillamelody.common.playback;
+
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a {@link PlayList.SongInfo} from file contents, including hashing and parsing, cycling through the corpus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SongInfoBenchmark {
+
+    @Param({BenchmarkSongs.LIBRARY, BenchmarkSongs.DENSE, BenchmarkSongs.TUNING})
+    public String corpus;
+
+    private ReferenceArrayList<byte[]> songs;
+    private int cursor = 0;
+
+    @Setup
+    public void setup() throws IOException, InvalidMidiDataException {
+        songs = BenchmarkSongs.corpus(corpus);
+    }
+
+    @Benchmark
+    public PlayList.SongInfo songInfo() throws InvalidMidiDataException {
+        final byte[] song = songs.get(cursor);
+        cursor = cursor + 1 < songs.size() ? cursor + 1 : 0;
+        return new PlayList.SongInfo(song, "song.mid");
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.ishland.vanillamelody.common.playback.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes the default instrument bank, as done for every bank hash and bank transfer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MidiInstrumentsBenchmark {
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        encoded = MidiInstruments.encodeBank(MidiInstruments.instrumentMapping, MidiInstruments.percussionMapping);
+    }
+
+    @Benchmark
+    public byte[] encodeBank() {
+        return MidiInstruments.encodeBank(MidiInstruments.instrumentMapping, MidiInstruments.percussionMapping);
+    }
+
+    @Benchmark
+    public MidiInstruments.Bank decodeBank() {
+        return MidiInstruments.decodeBank(encoded);
+    }
+
+}
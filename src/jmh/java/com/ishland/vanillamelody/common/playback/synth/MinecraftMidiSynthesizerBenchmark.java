@@ -0,0 +1,112 @@
+package com.ishland.vanillamelody.common.playback.synth;
+
+import com.ishland.vanillamelody.common.playback.BenchmarkSongs;
+import com.ishland.vanillamelody.common.playback.data.Note;
+import com.ishland.vanillamelody.common.playback.sequencer.PackedSequence;
+import com.ishland.vanillamelody.common.playback.sequencer.StandardMidiFileParser;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import net.minecraft.util.Identifier;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Feeds whole songs through {@link MinecraftMidiSynthesizer#send} without synthesizer ticks
+ * <p>
+ * The corpus is {@code dense}, {@code tuning} or a directory of midi files passed as the parameter,
+ * message and note rates are reported as secondary results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MinecraftMidiSynthesizerBenchmark {
+
+    @Param({BenchmarkSongs.DENSE, BenchmarkSongs.TUNING})
+    public String corpus;
+
+    private PackedSequence[] sequences;
+    private final CountingReceiver receiver = new CountingReceiver();
+    private final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(receiver);
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long messages;
+        public long notes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0L;
+            notes = 0L;
+        }
+
+    }
+
+    @Setup
+    public void setup() throws IOException, InvalidMidiDataException {
+        final ReferenceArrayList<byte[]> songs = BenchmarkSongs.corpus(corpus);
+        sequences = new PackedSequence[songs.size()];
+        for (int i = 0; i < songs.size(); i++) {
+            sequences[i] = StandardMidiFileParser.parse(songs.get(i));
+        }
+    }
+
+    @Benchmark
+    public void send(Counters counters) {
+        for (PackedSequence sequence : sequences) {
+            synthesizer.reset(true);
+            int extendedCursor = 0;
+            for (int i = 0, size = sequence.size(); i < size; i++) {
+                final long event = sequence.event(i);
+                if (PackedSequence.isExtended(event)) {
+                    final MidiMessage message = sequence.extendedMessage(extendedCursor++);
+                    if (!(message instanceof MetaMessage)) {
+                        synthesizer.send(message, -1L);
+                    }
+                } else {
+                    synthesizer.send(PackedSequence.status(event), PackedSequence.data1(event), PackedSequence.data2(event));
+                }
+            }
+            counters.messages += sequence.size();
+        }
+        counters.notes += receiver.notes;
+        receiver.notes = 0L;
+    }
+
+    private static final class CountingReceiver implements NoteReceiver {
+
+        private long notes = 0L;
+
+        @Override
+        public void playNote(Note note, BooleanSupplier isDone) {
+            notes++;
+        }
+
+        @Override
+        public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+            notes++;
+        }
+    }
+
+}
@@ -1,11 +1,13 @@
 package com.ishland.vanillamelody.client.playback;
 
+import com.ishland.vanillamelody.common.Config;
 import com.ishland.vanillamelody.common.Constants;
 import com.ishland.vanillamelody.common.playback.PacketConstants;
 import com.ishland.vanillamelody.common.playback.NoteUtil;
 import com.ishland.vanillamelody.common.playback.PlayList;
 import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
 import com.ishland.vanillamelody.common.playback.data.Note;
+import com.ishland.vanillamelody.common.playback.sequencer.LightweightSequencer;
 import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
 import com.ishland.vanillamelody.common.playback.synth.NoteReceiver;
 import io.netty.buffer.Unpooled;
@@ -20,108 +22,223 @@ import net.minecraft.sound.SoundCategory;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.Vec3d;
 
-import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Sequence;
-import javax.sound.midi.Sequencer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BooleanSupplier;
 
 public class ClientSongPlayer implements NoteReceiver {
 
+    // notes waiting for the render thread: note-ons are offered from the sequencer driver thread,
+    // retriggered long sounds from the scheduler thread
+    private static final NoteEventQueue NOTE_QUEUE = new NoteEventQueue(4096);
+    // notes delayed by longer than this, e.g. by a frame hitch, are dropped instead of played in a burst
+    private static final long STALE_NOTE_NANOS = 250_000_000L;
+    static final LatencyStats NOTE_DELAY = new LatencyStats("Client note submission delay");
+    private static final AtomicLong staleNotes = new AtomicLong();
+
     private final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(this);
 
     private volatile PlayList.SongInfo playing = null;
-    private volatile Sequencer sequencer;
+    private final LightweightSequencer sequencer = new LightweightSequencer(synthesizer, null);
 
-    private byte[] pendingHash = null;
+    // drift beyond this is corrected by seeking
+    private static final long HARD_RESYNC_MICROS = 1_000_000L;
+    // drift within this is left alone
+    private static final long DRIFT_TOLERANCE_MICROS = 2_000L;
+    // smaller drift is corrected over roughly this much time by adjusting the tempo
+    private static final float CORRECTION_WINDOW_MICROS = 2_000_000.0f;
+    private static final float MAX_TEMPO_ADJUSTMENT = 0.05f;
 
-    {
-        try {
-            reopenSequencer();
-        } catch (MidiUnavailableException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    // a stream drifting further than this from the sequencer is restarted
+    private static final long RENDERED_RESYNC_MICROS = 200_000L;
+    private CompletableFuture<SongRenderer.RenderedSong> pendingRender = null;
+    private SongRenderer.RenderedSong rendered = null;
+    // while set, the song is heard through this stream and the synthesizer only keeps the position
+    private volatile RenderedSongSoundInstance renderedSound = null;
 
-    private Sequencer reopenSequencer() throws MidiUnavailableException {
-        synchronized (this) {
-            Sequencer sequencer = this.sequencer;
-            if (sequencer != null) sequencer.close();
-            sequencer = this.sequencer = MidiSystem.getSequencer(false);
-            sequencer.getTransmitter().setReceiver(synthesizer);
-            sequencer.open();
-            return sequencer;
-        }
+    // song of the last sequence change that was not cached yet
+    private CompletableFuture<PlayList.SongInfo> pendingSong = null;
+    private int songSerial = -1;
+
+    public ClientSongPlayer() {
+        this.synthesizer.setSustainedVoices(Config.CLIENT_SUSTAINED_VOICES);
     }
 
     public void init(Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments, Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions) {
         this.synthesizer.setInstrumentBank(instruments);
         this.synthesizer.setPercussionBank(percussions);
+        if (Config.CLIENT_PREWARM_SAMPLES) SamplePrewarmer.prewarm(instruments, percussions);
     }
 
-    public void sequenceChange(byte[] sha256, long tickPosition, long microsecondsPosition) {
-        final PlayList.SongInfo songInfo = ClientSyncedPlaybackManager.get(sha256, true);
+    public void sequenceChange(byte[] sha256, long tickPosition, long microsecondsPosition, int songSerial) {
+        this.songSerial = songSerial;
+        final CompletableFuture<PlayList.SongInfo> future = ClientSyncedPlaybackManager.load(sha256);
+        final PlayList.SongInfo songInfo = future.getNow(null);
         if (songInfo == null) {
-            pendingHash = sha256;
+            pendingSong = future;
             return;
         }
+        pendingSong = null;
         final PlayList.SongInfo currentlyPlaying = playing;
-        Sequencer sequencer = this.sequencer;
-        if (sequencer == null) return;
         if (currentlyPlaying != null && currentlyPlaying == songInfo) {
             if (Math.abs(sequencer.getMicrosecondPosition() - microsecondsPosition) < 10_000_000) return;
             sequencer.setTickPosition(tickPosition);
             return;
         }
 
-        try {
-            sequencer.stop();
-//            sequencer.setSequence((Sequence) null);
-            this.synthesizer.reset(true);
-            this.playing = songInfo;
-            sequencer = reopenSequencer();
-            this.synthesizer.reset(true);
-            sequencer.setSequence(songInfo.sequence());
-            sequencer.setTickPosition(tickPosition);
-            sequencer.start();
-        } catch (InvalidMidiDataException | MidiUnavailableException e) {
-            e.printStackTrace();
-        }
+        sequencer.stop();
+        stopRendered();
+        this.rendered = null;
+        this.pendingRender = Config.CLIENT_OFFLINE_RENDER
+                ? SongRenderer.render(songInfo, new MidiInstruments.Bank(synthesizer.getInstrumentBank(), synthesizer.getPercussionBank()))
+                : null;
+        this.synthesizer.reset(true);
+        this.playing = songInfo;
+        sequencer.setSequence(songInfo.sequence());
+        this.synthesizer.reset(true);
+        sequencer.setTickPosition(tickPosition);
+        sequencer.setTempoFactor(1.0f);
+        sequencer.start();
+    }
 
+    /**
+     * Steers the playback towards the server position by adjusting the tempo slightly
+     *
+     * @param serverTime server time the position was sampled at
+     */
+    public void clockSync(int songSerial, long serverTime, long microsecondsPosition, ClockSync clock) {
+        if (songSerial != this.songSerial || playing == null || !sequencer.isRunning() || !clock.hasEstimate()) return;
+        final long expected = microsecondsPosition + (clock.serverNowMicros() - serverTime);
+        final long drift = expected - sequencer.getMicrosecondPosition();
+        if (Math.abs(drift) > HARD_RESYNC_MICROS) {
+            sequencer.setMicrosecondPosition(expected);
+            sequencer.setTempoFactor(1.0f);
+            return;
+        }
+        final float factor = Math.abs(drift) <= DRIFT_TOLERANCE_MICROS
+                ? 1.0f
+                : 1.0f + Math.max(-MAX_TEMPO_ADJUSTMENT, Math.min(MAX_TEMPO_ADJUSTMENT, drift / CORRECTION_WINDOW_MICROS));
+        if (factor != sequencer.getTempoFactor()) {
+            sequencer.setTempoFactor(factor);
+        }
     }
 
     public void tick(int syncId) {
         synthesizer.tick();
-        if (pendingHash != null) {
-            final PlayList.SongInfo songInfo = ClientSyncedPlaybackManager.get(pendingHash, false);
+        if (pendingRender != null && pendingRender.isDone()) {
+            rendered = pendingRender.getNow(null);
+            pendingRender = null;
+        }
+        if (rendered != null) {
+            syncRendered();
+        }
+        if (pendingSong != null && pendingSong.isDone()) {
+            final PlayList.SongInfo songInfo = pendingSong.getNow(null);
+            pendingSong = null;
             if (songInfo != null) {
+                // the position has moved on while loading, ask for the current one
                 final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
                 buf.writeInt(syncId);
                 ClientPlayNetworking.send(PacketConstants.CLIENT_PLAYBACK_SEQUENCE_REQUEST, buf);
-                pendingHash = null;
             }
         }
     }
 
-    public void close() {
-        final Sequencer sequencer = this.sequencer;
-        if (sequencer != null) {
-            sequencer.stop();
-            sequencer.close();
+    /**
+     * Keeps the rendered stream playing at the sequencer position, restarting it after seeks and drift
+     */
+    private void syncRendered() {
+        if (!sequencer.isRunning()) {
+            stopRendered();
+            return;
+        }
+        final long position = sequencer.getMicrosecondPosition();
+        final RenderedSongSoundInstance current = renderedSound;
+        if (current != null && Math.abs(current.getExpectedPosition() - position) <= RENDERED_RESYNC_MICROS) return;
+        if (current != null) current.stop();
+        final RenderedSongSoundInstance sound = new RenderedSongSoundInstance(rendered, position);
+        renderedSound = sound;
+        if (Constants.isRSLSInstalled) {
+            MinecraftClient.getInstance().getSoundManager().play(sound);
+        } else {
+            MinecraftClient.getInstance().execute(() -> MinecraftClient.getInstance().getSoundManager().play(sound));
         }
     }
 
+    private void stopRendered() {
+        final RenderedSongSoundInstance sound = renderedSound;
+        if (sound != null) {
+            sound.stop();
+            renderedSound = null;
+        }
+    }
+
+    public void close() {
+        stopRendered();
+        pendingRender = null;
+        rendered = null;
+        sequencer.close();
+        // ends sustained sounds still held
+        synthesizer.reset(true);
+    }
+
     @Override
     public void playNote(Note note, BooleanSupplier isDone) {
+        if (renderedSound != null) return;
         final ClientPlayerEntity player = MinecraftClient.getInstance().player;
         if (player == null) return;
         if (note.rawPitch() < 0.05f) return;
-        final SynthSoundInstance sound = SynthSoundInstance.create(note, isDone, player.getYaw());
+        play(SynthSoundInstance.create(note, isDone, player.getYaw()));
+    }
+
+    @Override
+    public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+        if (rawPitch < 0.05f || renderedSound != null) return;
+        if (!Constants.isRSLSInstalled && Config.CLIENT_BATCHED_NOTE_SUBMISSION) {
+            NOTE_QUEUE.offer(synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, System.nanoTime());
+            return;
+        }
+        final ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        if (player == null) return;
+        play(SynthSoundInstance.create(synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, player.getYaw()));
+    }
+
+    private void play(SynthSoundInstance sound) {
         if (Constants.isRSLSInstalled) {
+            if (!PolyphonyManager.admit(sound)) return;
             MinecraftClient.getInstance().getSoundManager().play(sound);
         } else {
-            MinecraftClient.getInstance().execute(() -> MinecraftClient.getInstance().getSoundManager().play(sound));
+            final long timestamp = System.nanoTime();
+            MinecraftClient.getInstance().execute(() -> {
+                NOTE_DELAY.record(System.nanoTime() - timestamp);
+                if (!PolyphonyManager.admit(sound)) return;
+                MinecraftClient.getInstance().getSoundManager().play(sound);
+            });
         }
     }
+
+    /**
+     * Plays all queued notes, called once per frame on the render thread
+     */
+    public static void drainNotes() {
+        final ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        final float yaw = player != null ? player.getYaw() : 0.0f;
+        final long now = System.nanoTime();
+        NOTE_QUEUE.drain((synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, timestamp) -> {
+            final long delay = now - timestamp;
+            NOTE_DELAY.record(delay);
+            if (player == null) return;
+            if (delay > STALE_NOTE_NANOS) {
+                staleNotes.incrementAndGet();
+                return;
+            }
+            final SynthSoundInstance sound = SynthSoundInstance.create(synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, yaw);
+            if (!PolyphonyManager.admit(sound)) return;
+            MinecraftClient.getInstance().getSoundManager().play(sound);
+        });
+    }
+
+    static String noteQueueSummary() {
+        return "Client note queue: %d dropped when full, %d dropped as stale".formatted(NOTE_QUEUE.getDropped(), staleNotes.get());
+    }
 }
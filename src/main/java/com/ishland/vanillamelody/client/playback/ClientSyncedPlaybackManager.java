@@ -1,34 +1,52 @@
 package com.ishland.vanillamelody.client.playback;
 
-import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ishland.vanillamelody.common.Config;
 import com.ishland.vanillamelody.common.playback.PacketConstants;
+import com.ishland.vanillamelody.common.playback.PayloadCodec;
 import com.ishland.vanillamelody.common.playback.PlayList;
 import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
 import com.ishland.vanillamelody.common.util.DigestUtils;
+import com.ishland.vanillamelody.common.util.GameDirs;
 import io.netty.buffer.Unpooled;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceFunction;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceMap;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
-import net.fabricmc.loader.api.FabricLoader;
+import net.fabricmc.fabric.api.networking.v1.PacketSender;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayNetworkHandler;
 import net.minecraft.network.PacketByteBuf;
+import org.jetbrains.annotations.Nullable;
 
 import javax.sound.midi.InvalidMidiDataException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ClientSyncedPlaybackManager {
 
@@ -37,93 +55,491 @@ public class ClientSyncedPlaybackManager {
             new ThreadFactoryBuilder().setNameFormat("VanillaMelody Client Scheduler").setDaemon(true).build()
     );
 
-    private static final Path CACHE_DIR = FabricLoader.getInstance().getGameDir()
-            .resolve("cache").resolve("vanillamelody").resolve("synced_midis");
+    // cache lookups, parsing and persistence, kept off the scheduler so playback never waits on disk
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(
+            2,
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Client IO %d").setDaemon(true).build()
+    );
+
+    // downloads and parses upcoming songs without getting in the way of playback
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Client Prefetcher").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build()
+    );
+
+    // upper bound of songs accepted in a single upcoming songs packet
+    private static final int MAX_UPCOMING_SONGS = 16;
+
+    // upper bound of files in a single request packet
+    private static final int MAX_REQUEST_BATCH = 256;
+
+    private static final Path BASE_CACHE_DIR = GameDirs.gameDir()
+            .resolve("cache").resolve("vanillamelody");
+
+    // one file per song, replaced by the pack file
+    private static final Path LEGACY_CACHE_DIR = BASE_CACHE_DIR.resolve("synced_midis");
+
+    private static final Path BANK_CACHE_DIR = BASE_CACHE_DIR.resolve("synced_banks");
 
     static {
         try {
-            Files.createDirectories(CACHE_DIR);
+            Files.createDirectories(BANK_CACHE_DIR);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static final ConcurrentHashMap<String, PlayList.SongInfo> CACHE = new ConcurrentHashMap<>();
+    private static final Cache<String, PlayList.SongInfo> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(1, Config.CLIENT_SONG_CACHE_SIZE_MB) * 1024L * 1024L)
+            .weigher((String key, PlayList.SongInfo song) -> song.weight())
+            .build();
+
+    private static final SongPackFile PACK = new SongPackFile(BASE_CACHE_DIR, "synced_midis", Math.max(1, Config.CLIENT_DISK_CACHE_SIZE_MB) * 1024L * 1024L);
+
+    // pending song loads, completed once the song is parsed or known to be missing
+    private static final ConcurrentHashMap<String, CompletableFuture<PlayList.SongInfo>> LOADS = new ConcurrentHashMap<>();
+
+    private static final LatencyStats TICK_LATENESS = new LatencyStats("Client scheduler tick lateness");
+    private static final LatencyStats TICK_TIME = new LatencyStats("Client scheduler tick time");
+    private static final long TICK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long STATS_INTERVAL_SECONDS = 60L;
+
+    private static final ClockSync CLOCK = new ClockSync();
+    private static final long CLOCK_PING_INTERVAL_MILLIS = 2000L;
+    // set once the server completed a compatible handshake
+    private static volatile boolean synced = false;
+    private static final ConcurrentHashMap<String, MidiInstruments.Bank> BANK_CACHE = new ConcurrentHashMap<>();
+
+    // upper bound of a single transferred midi file
+    private static final int MAX_TRANSFER_LENGTH = 64 * 1024 * 1024;
+
+    // partially received files, kept across reconnects so transfers resume where they stopped
+    private static final ConcurrentHashMap<String, IncomingTransfer> TRANSFERS = new ConcurrentHashMap<>();
+
+    private static final class IncomingTransfer {
+
+        private final byte[] sha256;
+        private final MessageDigest digest;
+        private PayloadCodec codec = null;
+        @Nullable
+        private Inflater inflater = null;
+        private byte[] data = null;
+        private int decoded = 0;
+        private int payloadLength = 0;
+        private int received = 0;
+        private volatile boolean prefetch;
+        // set while a transfer from zero was requested after the server resumed a different payload
+        private boolean restarting = false;
+
+        private IncomingTransfer(byte[] sha256, boolean prefetch) {
+            this.prefetch = prefetch;
+            this.sha256 = sha256;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private boolean matches(PayloadCodec codec, int length, int payloadLength) {
+            return this.codec == codec && this.data != null && this.data.length == length && this.payloadLength == payloadLength;
+        }
+
+        private void begin(PayloadCodec codec, int length, int payloadLength) {
+            end();
+            this.codec = codec;
+            this.inflater = codec == PayloadCodec.DEFLATE ? new Inflater() : null;
+            this.data = new byte[length];
+            this.decoded = 0;
+            this.payloadLength = payloadLength;
+            this.received = 0;
+            this.digest.reset();
+            this.restarting = false;
+        }
+
+        /**
+         * Drops the partial contents, so that the next request starts from zero
+         */
+        private void reset() {
+            end();
+            this.codec = null;
+            this.data = null;
+            this.decoded = 0;
+            this.payloadLength = 0;
+            this.received = 0;
+            this.digest.reset();
+        }
+
+        /**
+         * Decodes a chunk of the payload into the contents and feeds them to the digest
+         */
+        private void accept(ByteBuffer chunk) throws DataFormatException {
+            final int start = this.decoded;
+            if (this.inflater != null) {
+                this.inflater.setInput(chunk);
+                int inflated;
+                while (this.decoded < this.data.length && (inflated = this.inflater.inflate(this.data, this.decoded, this.data.length - this.decoded)) > 0) {
+                    this.decoded += inflated;
+                }
+            } else {
+                final int length = Math.min(chunk.remaining(), this.data.length - this.decoded);
+                chunk.get(this.data, this.decoded, length);
+                this.decoded += length;
+            }
+            this.digest.update(this.data, start, this.decoded - start);
+        }
+
+        private void end() {
+            if (this.inflater != null) {
+                this.inflater.end();
+                this.inflater = null;
+            }
+        }
+    }
 
     static {
         ClientPlayConnectionEvents.INIT.register((handler, client) -> {
             ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_HELLO, (client1, handler1, buf, responseSender) -> {
-                responseSender.sendPacket(PacketConstants.CLIENT_HELLO, new PacketByteBuf(Unpooled.buffer(0)));
+                final int protocolVersion = buf.isReadable() ? buf.readVarInt() : 0;
+                if (protocolVersion != PacketConstants.PROTOCOL_VERSION) {
+                    System.out.println("Server VanillaMelody uses protocol %d, expected %d, synced playback disabled".formatted(protocolVersion, PacketConstants.PROTOCOL_VERSION));
+                    return;
+                }
+                final PacketByteBuf helloBuf = new PacketByteBuf(Unpooled.buffer(10));
+                helloBuf.writeVarInt(PacketConstants.PROTOCOL_VERSION);
+                helloBuf.writeVarInt(PayloadCodec.supportedMask());
+                responseSender.sendPacket(PacketConstants.CLIENT_HELLO, helloBuf);
+                synced = true;
+                sendClockPing();
+                // resume transfers interrupted by a previous connection
+                sendFileRequests(requestBuf -> responseSender.sendPacket(PacketConstants.CLIENT_MIDI_FILE_REQUEST, requestBuf), new ReferenceArrayList<>(TRANSFERS.values()));
             });
             ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_MIDI_FILE_RESPONSE, (client1, handler1, buf, responseSender) -> {
-                final byte status = buf.readByte();
-                if (status == 0x01) { // success
+                final int count = buf.readVarInt();
+                for (int i = 0; i < count && buf.readableBytes() >= DigestUtils.SHA256_BYTES; i++) {
                     final byte[] requestedHash = new byte[DigestUtils.SHA256_BYTES];
                     buf.readBytes(requestedHash);
-                    final int length = buf.readVarInt();
-                    final byte[] sequenceBytes = new byte[length];
-                    buf.readBytes(sequenceBytes);
-                    putInCache(requestedHash, sequenceBytes);
+                    final String sha256String = DigestUtils.bytesToHex(requestedHash);
+                    final IncomingTransfer transfer = TRANSFERS.remove(sha256String);
+                    if (transfer != null) {
+                        synchronized (transfer) {
+                            transfer.end();
+                        }
+                    }
+                    completeLoad(sha256String, null);
                 }
             });
+            ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_MIDI_FILE_CHUNK, (client1, handler1, buf, responseSender) -> {
+                final byte[] sha256 = new byte[DigestUtils.SHA256_BYTES];
+                buf.readBytes(sha256);
+                final PayloadCodec codec = PayloadCodec.byId(buf.readVarInt());
+                final int length = buf.readVarInt();
+                final int payloadLength = buf.readVarInt();
+                final int offset = buf.readVarInt();
+                receiveChunk(sha256, codec, length, payloadLength, offset, buf, responseSender);
+            });
         });
     }
 
+    private static void receiveChunk(byte[] sha256, PayloadCodec codec, int length, int payloadLength, int offset, PacketByteBuf buf, PacketSender responseSender) {
+        final String sha256String = DigestUtils.bytesToHex(sha256);
+        final IncomingTransfer transfer = TRANSFERS.get(sha256String);
+        if (transfer == null) return; // not requested or already complete
+        final int received;
+        synchronized (transfer) {
+            if (!transfer.matches(codec, length, payloadLength)) {
+                if (offset != 0) {
+                    // chunks of the replaced transfer may still arrive until the restarted one begins
+                    if (transfer.restarting) return;
+                    // the server resumed a payload other than the partial one, e.g. after a restart or with another codec
+                    transfer.reset();
+                    transfer.restarting = true;
+                    sendFileRequests(requestBuf -> responseSender.sendPacket(PacketConstants.CLIENT_MIDI_FILE_REQUEST, requestBuf), List.of(transfer));
+                    return;
+                }
+                if (codec == null || length <= 0 || length > MAX_TRANSFER_LENGTH || payloadLength <= 0) {
+                    System.out.println("Rejecting midi file %s with codec %s and length %d".formatted(sha256String, codec, length));
+                    TRANSFERS.remove(sha256String);
+                    transfer.end();
+                    completeLoad(sha256String, null);
+                    return;
+                }
+                transfer.begin(codec, length, payloadLength);
+            }
+            final int chunkLength = buf.readableBytes();
+            // only in-order chunks are taken
+            if (offset == transfer.received && chunkLength <= payloadLength - offset) {
+                try {
+                    transfer.accept(buf.nioBuffer());
+                } catch (DataFormatException e) {
+                    System.out.println("Corrupted midi file transfer " + sha256String);
+                    e.printStackTrace();
+                    TRANSFERS.remove(sha256String);
+                    transfer.end();
+                    completeLoad(sha256String, null);
+                    return;
+                }
+                transfer.received += chunkLength;
+            }
+            received = transfer.received;
+            if (received == payloadLength) {
+                TRANSFERS.remove(sha256String);
+                transfer.end();
+                if (transfer.decoded == length && Arrays.equals(sha256, transfer.digest.digest())) {
+                    final byte[] sequenceBytes = transfer.data;
+                    (transfer.prefetch ? PREFETCHER : IO_EXECUTOR).execute(() -> putInCache(sha256, sequenceBytes));
+                } else {
+                    System.out.println("Hash mismatch for transferred midi file " + sha256String);
+                    completeLoad(sha256String, null);
+                }
+            }
+        }
+
+        final PacketByteBuf ackBuf = new PacketByteBuf(Unpooled.buffer(DigestUtils.SHA256_BYTES + 5));
+        ackBuf.writeBytes(sha256);
+        ackBuf.writeVarInt(received);
+        responseSender.sendPacket(PacketConstants.CLIENT_MIDI_FILE_ACK, ackBuf);
+    }
+
+    /**
+     * Requests many files at once, split into packets of at most {@link #MAX_REQUEST_BATCH} files
+     */
+    private static void sendFileRequests(Consumer<PacketByteBuf> sender, List<IncomingTransfer> transfers) {
+        for (int start = 0; start < transfers.size(); start += MAX_REQUEST_BATCH) {
+            final int end = Math.min(transfers.size(), start + MAX_REQUEST_BATCH);
+            final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(5 + (end - start) * (DigestUtils.SHA256_BYTES + 5 + 1)));
+            buf.writeVarInt(end - start);
+            for (int i = start; i < end; i++) {
+                final IncomingTransfer transfer = transfers.get(i);
+                synchronized (transfer) {
+                    buf.writeBytes(transfer.sha256);
+                    buf.writeVarInt(transfer.received);
+                    buf.writeBoolean(transfer.prefetch);
+                }
+            }
+            sender.accept(buf);
+        }
+    }
+
+    /**
+     * @param sha256 the already verified hash of the contents
+     */
     private static void putInCache(byte[] sha256, byte[] sequenceBytes) {
+        final String sha256String = DigestUtils.bytesToHex(sha256);
         try {
-            final PlayList.SongInfo song = new PlayList.SongInfo(sequenceBytes, DigestUtils.bytesToHex(sha256));
-            Preconditions.checkArgument(Arrays.equals(sha256, song.sha256()), "hash mismatch");
-            CACHE.put(DigestUtils.bytesToHex(song.sha256()), song);
+            final PlayList.SongInfo song = new PlayList.SongInfo(sequenceBytes, sha256String, sha256);
+            CACHE.put(sha256String, song);
+            completeLoad(sha256String, song);
+            PACK.put(sha256, sequenceBytes);
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+            completeLoad(sha256String, null);
+        }
+    }
+
+    private static void completeLoad(String sha256String, @Nullable PlayList.SongInfo song) {
+        final CompletableFuture<PlayList.SongInfo> future = LOADS.remove(sha256String);
+        if (future != null) future.complete(song);
+    }
+
+    /**
+     * Gets a song from the caches or the server without blocking the caller
+     *
+     * @return a future completing with the song, or with null if the server does not have it
+     */
+    public static CompletableFuture<PlayList.SongInfo> load(byte[] sha256) {
+        final String sha256String = DigestUtils.bytesToHex(sha256);
+        final PlayList.SongInfo cached = CACHE.getIfPresent(sha256String);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        final CompletableFuture<PlayList.SongInfo> future = new CompletableFuture<>();
+        final CompletableFuture<PlayList.SongInfo> existing = LOADS.putIfAbsent(sha256String, future);
+        if (existing != null) return existing;
+        IO_EXECUTOR.execute(() -> {
             try {
-                Files.write(CACHE_DIR.resolve(DigestUtils.bytesToHex(song.sha256())), sequenceBytes, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
+                final PlayList.SongInfo song = lookup(sha256);
+                if (song != null) {
+                    completeLoad(sha256String, song);
+                    return;
+                }
+
+                // cache check failed
+                final ClientPlayNetworkHandler networkHandler = MinecraftClient.getInstance().getNetworkHandler();
+                if (networkHandler == null) {
+                    completeLoad(sha256String, null);
+                    return;
+                }
+                final IncomingTransfer transfer = startTransfer(sha256, false);
+                if (transfer != null) {
+                    sendFileRequests(buf -> networkHandler.sendPacket(ClientPlayNetworking.createC2SPacket(PacketConstants.CLIENT_MIDI_FILE_REQUEST, buf)), List.of(transfer));
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+                completeLoad(sha256String, null);
             }
-        } catch (InvalidMidiDataException | IOException e) {
-            throw new RuntimeException(e);
-        }
+        });
+        return future;
+    }
+
+    /**
+     * Gets upcoming songs into the cache ahead of time, missing songs are requested in a single batch
+     */
+    private static void prefetch(byte[][] sha256s) {
+        PREFETCHER.execute(() -> {
+            final ReferenceArrayList<IncomingTransfer> transfers = new ReferenceArrayList<>();
+            for (byte[] sha256 : sha256s) {
+                try {
+                    if (lookup(sha256) != null) continue;
+                    final IncomingTransfer transfer = startTransfer(sha256, true);
+                    if (transfer != null) transfers.add(transfer);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+            final ClientPlayNetworkHandler networkHandler = MinecraftClient.getInstance().getNetworkHandler();
+            if (!transfers.isEmpty() && networkHandler != null) {
+                sendFileRequests(buf -> networkHandler.sendPacket(ClientPlayNetworking.createC2SPacket(PacketConstants.CLIENT_MIDI_FILE_REQUEST, buf)), transfers);
+            }
+        });
     }
 
-    public static PlayList.SongInfo get(byte[] sha256, boolean request) {
+    @Nullable
+    private static PlayList.SongInfo lookup(byte[] sha256) {
         String sha256String = DigestUtils.bytesToHex(sha256);
-        final PlayList.SongInfo cached = CACHE.get(sha256String);
+        final PlayList.SongInfo cached = CACHE.getIfPresent(sha256String);
         if (cached != null) return cached;
 
         // in-memory cache check failed, check disk
+        final byte[] sequenceBytes = PACK.get(sha256);
+        if (sequenceBytes == null) return null;
         try {
-            if (Files.exists(CACHE_DIR.resolve(sha256String))) {
-                final byte[] sequenceBytes = Files.readAllBytes(CACHE_DIR.resolve(sha256String));
-                if (Arrays.equals(DigestUtils.sha256(sequenceBytes), sha256)) {
-                    putInCache(sha256, sequenceBytes);
-                    return CACHE.get(sha256String);
-                } else {
-                    Files.delete(CACHE_DIR.resolve(sha256String));
+            final PlayList.SongInfo song = new PlayList.SongInfo(sequenceBytes, sha256String, sha256);
+            CACHE.put(sha256String, song);
+            return song;
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Moves songs from the old one file per song cache into the pack file
+     */
+    private static void migrateLegacyCache() {
+        if (!Files.isDirectory(LEGACY_CACHE_DIR)) return;
+        int migrated = 0;
+        try (Stream<Path> stream = Files.list(LEGACY_CACHE_DIR)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                try {
+                    final byte[] sequenceBytes = Files.readAllBytes(path);
+                    final byte[] sha256 = DigestUtils.sha256(sequenceBytes);
+                    if (DigestUtils.bytesToHex(sha256).equals(path.getFileName().toString())) {
+                        PACK.put(sha256, sequenceBytes);
+                        migrated++;
+                    }
+                    Files.delete(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        try {
+            Files.deleteIfExists(LEGACY_CACHE_DIR);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Migrated %d cached midi files into the pack file".formatted(migrated));
+    }
 
-        // disk cache check failed
-        final ClientPlayNetworkHandler networkHandler = MinecraftClient.getInstance().getNetworkHandler();
-        if (request && networkHandler != null) {
-            // request from server
-            final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(DigestUtils.SHA256_BYTES));
-            buf.writeBytes(sha256);
-            networkHandler.sendPacket(ClientPlayNetworking.createC2SPacket(PacketConstants.CLIENT_MIDI_FILE_REQUEST, buf));
+    /**
+     * Gets the transfer to request, continuing any partial transfer
+     *
+     * @return null if a prefetch is already on its way
+     */
+    @Nullable
+    private static IncomingTransfer startTransfer(byte[] sha256, boolean prefetch) {
+        final String sha256String = DigestUtils.bytesToHex(sha256);
+        final IncomingTransfer existing = TRANSFERS.get(sha256String);
+        if (prefetch && existing != null) return null;
+        final IncomingTransfer transfer = existing != null ? existing : TRANSFERS.computeIfAbsent(sha256String, unused -> new IncomingTransfer(sha256, prefetch));
+        if (!prefetch) {
+            // requesting a song that is being prefetched raises its priority
+            synchronized (transfer) {
+                transfer.prefetch = false;
+            }
+        }
+        return transfer;
+    }
+
+    private static CompletableFuture<MidiInstruments.Bank> loadBank(byte[] sha256) {
+        final MidiInstruments.Bank cached = BANK_CACHE.get(DigestUtils.bytesToHex(sha256));
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        return CompletableFuture.supplyAsync(() -> lookupBank(sha256), IO_EXECUTOR);
+    }
+
+    @Nullable
+    private static MidiInstruments.Bank lookupBank(byte[] sha256) {
+        final String sha256String = DigestUtils.bytesToHex(sha256);
+        final MidiInstruments.Bank cached = BANK_CACHE.get(sha256String);
+        if (cached != null) return cached;
+
+        final Path path = BANK_CACHE_DIR.resolve(sha256String);
+        try {
+            if (Files.exists(path)) {
+                final byte[] encoded = Files.readAllBytes(path);
+                if (Arrays.equals(DigestUtils.sha256(encoded), sha256)) {
+                    final MidiInstruments.Bank bank = MidiInstruments.decodeBank(encoded);
+                    BANK_CACHE.put(sha256String, bank);
+                    return bank;
+                } else {
+                    Files.delete(path);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
         }
         return null;
     }
 
+    private static void putBankInCache(byte[] sha256, byte[] encoded, MidiInstruments.Bank bank) {
+        final String sha256String = DigestUtils.bytesToHex(sha256);
+        BANK_CACHE.put(sha256String, bank);
+        IO_EXECUTOR.execute(() -> {
+            try {
+                Files.write(BANK_CACHE_DIR.resolve(sha256String), encoded, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private static void sendClockPing() {
+        final ClientPlayNetworkHandler networkHandler = MinecraftClient.getInstance().getNetworkHandler();
+        if (!synced || networkHandler == null) return;
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(10));
+        buf.writeVarLong(ClockSync.nowMicros());
+        networkHandler.sendPacket(ClientPlayNetworking.createC2SPacket(PacketConstants.CLIENT_CLOCK_PING, buf));
+    }
+
     public static void init() {
+        PREFETCHER.execute(ClientSyncedPlaybackManager::migrateLegacyCache);
     }
 
     // below are non-threadsafe code, only run on scheduler thread
     private static final Int2ReferenceOpenHashMap<ClientSongPlayer> SONG_PLAYERS = new Int2ReferenceOpenHashMap<>();
     private static final Int2ReferenceFunction<ClientSongPlayer> NEW_SONG_PLAYER = ignored -> new ClientSongPlayer();
+    // sync ids waiting for an instrument bank to arrive, keyed by bank hash
+    private static final Object2ObjectOpenHashMap<String, IntArrayList> PENDING_BANKS = new Object2ObjectOpenHashMap<>();
+
+    private static long nextTickTime = 0L;
 
     static {
         EXECUTOR.scheduleAtFixedRate(() -> {
+            final long startTime = System.nanoTime();
+            // how late this tick started compared to the fixed rate, anything blocking the scheduler shows up here
+            if (nextTickTime != 0L) TICK_LATENESS.record(startTime - nextTickTime);
+            nextTickTime = (nextTickTime != 0L ? nextTickTime : startTime) + TICK_INTERVAL_NANOS;
             final ObjectIterator<Int2ReferenceMap.Entry<ClientSongPlayer>> iterator = SONG_PLAYERS.int2ReferenceEntrySet().fastIterator();
             while (iterator.hasNext()) {
                 final var entry = iterator.next();
@@ -134,15 +550,67 @@ public class ClientSyncedPlaybackManager {
                     t.printStackTrace();
                 }
             }
+            TICK_TIME.record(System.nanoTime() - startTime);
         }, 20, 20, TimeUnit.MILLISECONDS);
+        if (Config.CLIENT_SCHEDULER_STATS) {
+            EXECUTOR.scheduleAtFixedRate(() -> {
+                System.out.println(TICK_LATENESS.summary());
+                System.out.println(TICK_TIME.summary());
+                System.out.println(PolyphonyManager.summary());
+                System.out.println(ClientSongPlayer.NOTE_DELAY.summary());
+                System.out.println(ClientSongPlayer.noteQueueSummary());
+                TICK_LATENESS.reset();
+                TICK_TIME.reset();
+                ClientSongPlayer.NOTE_DELAY.reset();
+            }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
 
         ClientPlayConnectionEvents.INIT.register((handler, client) -> {
             ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_PLAYBACK_INIT, (client1, handler1, buf, responseSender) -> {
                 final int syncId = buf.readInt();
-                final Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments = MidiInstruments.readInstruments(buf);
-                final Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions = MidiInstruments.readPercussions(buf);
+                final byte[] bankHash = new byte[DigestUtils.SHA256_BYTES];
+                buf.readBytes(bankHash);
+                loadBank(bankHash).thenAcceptAsync(bank -> {
+                    if (bank != null) {
+                        SONG_PLAYERS.computeIfAbsent(syncId, NEW_SONG_PLAYER).init(bank.instruments(), bank.percussions());
+                        return;
+                    }
+                    final IntArrayList pending = PENDING_BANKS.get(DigestUtils.bytesToHex(bankHash));
+                    if (pending != null) {
+                        pending.add(syncId);
+                        return;
+                    }
+                    PENDING_BANKS.put(DigestUtils.bytesToHex(bankHash), IntArrayList.wrap(new int[]{syncId}));
+                    final PacketByteBuf requestBuf = new PacketByteBuf(Unpooled.buffer(DigestUtils.SHA256_BYTES));
+                    requestBuf.writeBytes(bankHash);
+                    responseSender.sendPacket(PacketConstants.CLIENT_BANK_REQUEST, requestBuf);
+                }, EXECUTOR);
+            });
+            ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_BANK_RESPONSE, (client1, handler1, buf, responseSender) -> {
+                final byte[] bankHash = new byte[DigestUtils.SHA256_BYTES];
+                buf.readBytes(bankHash);
+                final byte[] encoded = new byte[buf.readableBytes()];
+                buf.readBytes(encoded);
+                MidiInstruments.Bank decoded = null;
+                if (encoded.length > 0 && Arrays.equals(DigestUtils.sha256(encoded), bankHash)) {
+                    try {
+                        decoded = MidiInstruments.decodeBank(encoded);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (decoded == null) {
+                    System.out.println("Received invalid instrument bank " + DigestUtils.bytesToHex(bankHash));
+                }
+                final MidiInstruments.Bank bank = decoded;
                 EXECUTOR.execute(() -> {
-                    SONG_PLAYERS.computeIfAbsent(syncId, NEW_SONG_PLAYER).init(instruments, percussions);
+                    final IntArrayList pending = PENDING_BANKS.remove(DigestUtils.bytesToHex(bankHash));
+                    if (bank == null) return;
+                    putBankInCache(bankHash, encoded, bank);
+                    if (pending == null) return;
+                    for (int i = 0; i < pending.size(); i++) {
+                        SONG_PLAYERS.computeIfAbsent(pending.getInt(i), NEW_SONG_PLAYER).init(bank.instruments(), bank.percussions());
+                    }
                 });
             });
             ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_PLAYBACK_SEQUENCE_CHANGE, (client1, handler1, buf, responseSender) -> {
@@ -151,10 +619,39 @@ public class ClientSyncedPlaybackManager {
                 buf.readBytes(sha256);
                 final long tickPosition = buf.readLong();
                 final long microsecondsPosition = buf.readLong();
+                final int songSerial = buf.readVarInt();
                 EXECUTOR.execute(() -> {
-                    SONG_PLAYERS.computeIfAbsent(syncId, NEW_SONG_PLAYER).sequenceChange(sha256, tickPosition, microsecondsPosition);
+                    SONG_PLAYERS.computeIfAbsent(syncId, NEW_SONG_PLAYER).sequenceChange(sha256, tickPosition, microsecondsPosition, songSerial);
                 });
             });
+            ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_CLOCK_PONG, (client1, handler1, buf, responseSender) -> {
+                final long received = ClockSync.nowMicros();
+                final long sent = buf.readVarLong();
+                final long serverTime = buf.readVarLong();
+                CLOCK.addSample(sent, serverTime, received);
+            });
+            ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_PLAYBACK_CLOCK, (client1, handler1, buf, responseSender) -> {
+                final int syncId = buf.readInt();
+                final int songSerial = buf.readVarInt();
+                final long serverTime = buf.readVarLong();
+                final long microsecondsPosition = buf.readVarLong();
+                EXECUTOR.execute(() -> {
+                    final ClientSongPlayer player = SONG_PLAYERS.get(syncId);
+                    if (player != null) {
+                        player.clockSync(songSerial, serverTime, microsecondsPosition, CLOCK);
+                    }
+                });
+            });
+            ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_PLAYBACK_UPCOMING, (client1, handler1, buf, responseSender) -> {
+                buf.readInt(); // sync id, upcoming songs are cached regardless of the station
+                final int count = Math.max(0, Math.min(buf.readVarInt(), MAX_UPCOMING_SONGS));
+                final byte[][] sha256s = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    sha256s[i] = new byte[DigestUtils.SHA256_BYTES];
+                    buf.readBytes(sha256s[i]);
+                }
+                prefetch(sha256s);
+            });
             ClientPlayNetworking.registerReceiver(PacketConstants.SERVER_PLAYBACK_STOP, (client1, handler1, buf, responseSender) -> {
                 final int syncId = buf.readInt();
                 EXECUTOR.execute(() -> {
@@ -166,10 +663,16 @@ public class ClientSyncedPlaybackManager {
                 });
             });
         });
+        EXECUTOR.scheduleAtFixedRate(ClientSyncedPlaybackManager::sendClockPing, CLOCK_PING_INTERVAL_MILLIS, CLOCK_PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
         ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> {
+            synced = false;
+            CLOCK.reset();
             EXECUTOR.execute(() -> {
                 SONG_PLAYERS.values().forEach(ClientSongPlayer::close);
                 SONG_PLAYERS.clear();
+                PENDING_BANKS.clear();
+                PolyphonyManager.clear();
             });
         });
     }
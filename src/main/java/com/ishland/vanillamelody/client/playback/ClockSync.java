@@ -0,0 +1,65 @@
+package com.ishland.vanillamelody.client.playback;
+
+/**
+ * NTP-style estimate of the offset between the server clock and the client clock
+ * <p>
+ * Of the recent samples, the one with the lowest round trip time is trusted, as it has the least
+ * room for asymmetric network delay.
+ */
+public class ClockSync {
+
+    private static final int SAMPLES = 8;
+
+    private final long[] rtts = new long[SAMPLES];
+    private final long[] offsets = new long[SAMPLES];
+    private int sampleCount = 0;
+    private int nextSample = 0;
+
+    private volatile long offset = 0L;
+    private volatile long rtt = -1L;
+
+    public static long nowMicros() {
+        return System.nanoTime() / 1000L;
+    }
+
+    /**
+     * @param clientSent client time the ping was sent
+     * @param serverTime server time the ping was answered
+     * @param clientReceived client time the pong was received
+     */
+    public synchronized void addSample(long clientSent, long serverTime, long clientReceived) {
+        final long sampleRtt = clientReceived - clientSent;
+        if (sampleRtt < 0) return;
+        rtts[nextSample] = sampleRtt;
+        offsets[nextSample] = serverTime - (clientSent + clientReceived) / 2;
+        nextSample = (nextSample + 1) % SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, SAMPLES);
+
+        int best = 0;
+        for (int i = 1; i < sampleCount; i++) {
+            if (rtts[i] < rtts[best]) best = i;
+        }
+        this.offset = offsets[best];
+        this.rtt = rtts[best];
+    }
+
+    public synchronized void reset() {
+        sampleCount = 0;
+        nextSample = 0;
+        offset = 0L;
+        rtt = -1L;
+    }
+
+    public boolean hasEstimate() {
+        return rtt >= 0;
+    }
+
+    public long getRtt() {
+        return rtt;
+    }
+
+    public long serverNowMicros() {
+        return nowMicros() + offset;
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.ishland.vanillamelody.client.playback;
+
+import java.util.Arrays;
+
+/**
+ * Running latency distribution in power of two microsecond buckets
+ */
+public class LatencyStats {
+
+    private static final int BUCKETS = 32;
+
+    private final String name;
+    private final long[] buckets = new long[BUCKETS];
+    private long count = 0L;
+    private long totalNanos = 0L;
+    private long maxNanos = 0L;
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    public synchronized void record(long nanos) {
+        if (nanos < 0L) nanos = 0L;
+        final long micros = nanos / 1000L;
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * @return upper bound in microseconds of the bucket containing the given percentile
+     */
+    private long percentileMicros(double percentile) {
+        final long threshold = (long) Math.ceil(count * percentile);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= threshold) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public synchronized String summary() {
+        if (count == 0L) return "%s: no samples".formatted(name);
+        return "%s: %d samples, avg %.2fms, p50 <%.2fms, p99 <%.2fms, max %.2fms".formatted(
+                name, count, totalNanos / (double) count / 1_000_000.0,
+                percentileMicros(0.5) / 1000.0, percentileMicros(0.99) / 1000.0, maxNanos / 1_000_000.0);
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0L);
+        count = 0L;
+        totalNanos = 0L;
+        maxNanos = 0L;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer ring buffer of note events
+ * <p>
+ * Events are stored field by field in primitive arrays, so queueing a note allocates nothing.
+ * Every slot carries a sequence number telling producers and the consumer whose turn it is.
+ */
+public class NoteEventQueue {
+
+    public interface Consumer {
+
+        void accept(MinecraftMidiSynthesizer synthesizer, byte mcInstrument, float volume, int panning, float rawPitch, long voice, long playableUntil, long timestamp);
+
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // only touched by the consumer
+    private long head = 0L;
+
+    private final MinecraftMidiSynthesizer[] synthesizers;
+    private final byte[] mcInstruments;
+    private final float[] volumes;
+    private final int[] pannings;
+    private final float[] rawPitches;
+    private final long[] voices;
+    private final long[] playableUntils;
+    private final long[] timestamps;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public NoteEventQueue(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            this.sequences.set(i, i);
+        }
+        this.synthesizers = new MinecraftMidiSynthesizer[this.capacity];
+        this.mcInstruments = new byte[this.capacity];
+        this.volumes = new float[this.capacity];
+        this.pannings = new int[this.capacity];
+        this.rawPitches = new float[this.capacity];
+        this.voices = new long[this.capacity];
+        this.playableUntils = new long[this.capacity];
+        this.timestamps = new long[this.capacity];
+    }
+
+    /**
+     * @return false if the queue is full and the note was dropped
+     */
+    public boolean offer(MinecraftMidiSynthesizer synthesizer, byte mcInstrument, float volume, int panning, float rawPitch, long voice, long playableUntil, long timestamp) {
+        long position;
+        while (true) {
+            position = this.tail.get();
+            final long sequence = this.sequences.get((int) (position & this.mask));
+            if (sequence == position) {
+                if (this.tail.compareAndSet(position, position + 1)) break;
+            } else if (sequence < position) {
+                // the consumer has not freed this slot yet
+                this.dropped.incrementAndGet();
+                return false;
+            }
+            // else another producer claimed the slot first
+        }
+        final int index = (int) (position & this.mask);
+        this.synthesizers[index] = synthesizer;
+        this.mcInstruments[index] = mcInstrument;
+        this.volumes[index] = volume;
+        this.pannings[index] = panning;
+        this.rawPitches[index] = rawPitch;
+        this.voices[index] = voice;
+        this.playableUntils[index] = playableUntil;
+        this.timestamps[index] = timestamp;
+        // publishes the fields above to the consumer
+        this.sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Hands all published events to the consumer in order, must only be called from one thread at a time
+     *
+     * @return number of events drained
+     */
+    public int drain(Consumer consumer) {
+        int drained = 0;
+        while (true) {
+            final long position = this.head;
+            final int index = (int) (position & this.mask);
+            if (this.sequences.get(index) != position + 1) return drained;
+            final MinecraftMidiSynthesizer synthesizer = this.synthesizers[index];
+            final byte mcInstrument = this.mcInstruments[index];
+            final float volume = this.volumes[index];
+            final int panning = this.pannings[index];
+            final float rawPitch = this.rawPitches[index];
+            final long voice = this.voices[index];
+            final long playableUntil = this.playableUntils[index];
+            final long timestamp = this.timestamps[index];
+            this.synthesizers[index] = null;
+            // hands the slot back to producers for the next lap
+            this.sequences.lazySet(index, position + this.capacity);
+            this.head = position + 1;
+            consumer.accept(synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, timestamp);
+            drained++;
+        }
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.ishland.vanillamelody.common.Config;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+/**
+ * Caps the number of synthesized sounds playing at once, so that dense songs leave channels for game sounds
+ * <p>
+ * Once the cap is reached, a new note replaces the playing sound with the lowest priority if it outranks it
+ * and is dropped otherwise. Priority is the note volume, decaying with age, and lower for released keys
+ * and percussion hits which are mostly tail by then.
+ */
+public class PolyphonyManager {
+
+    // a sound the engine has not ticked for this long is no longer playing
+    private static final long TICK_TIMEOUT_MILLIS = 250L;
+    // age at which the priority of a sound has halved
+    private static final float VOICE_DECAY_MILLIS = 1000.0f;
+    private static final float PERCUSSION_DECAY_MILLIS = 250.0f;
+    private static final float RELEASED_FACTOR = 0.5f;
+
+    private static final ReferenceArrayList<SynthSoundInstance> ACTIVE = new ReferenceArrayList<>();
+
+    private static long played = 0L;
+    private static long dropped = 0L;
+    private static long stolen = 0L;
+
+    /**
+     * Decides whether a new sound may be played, stealing a channel from a lower priority sound if needed
+     */
+    public static synchronized boolean admit(SynthSoundInstance sound) {
+        final int maxVoices = Config.CLIENT_MAX_VOICES;
+        if (maxVoices <= 0) {
+            played++;
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        prune(now);
+        if (ACTIVE.size() >= maxVoices) {
+            int lowest = -1;
+            float lowestPriority = Float.MAX_VALUE;
+            for (int i = 0; i < ACTIVE.size(); i++) {
+                final float priority = priority(ACTIVE.get(i), now);
+                if (priority < lowestPriority) {
+                    lowest = i;
+                    lowestPriority = priority;
+                }
+            }
+            if (lowest < 0 || lowestPriority >= priority(sound, now)) {
+                dropped++;
+                return false;
+            }
+            ACTIVE.get(lowest).steal();
+            ACTIVE.set(lowest, ACTIVE.get(ACTIVE.size() - 1));
+            ACTIVE.remove(ACTIVE.size() - 1);
+            stolen++;
+        }
+        ACTIVE.add(sound);
+        played++;
+        return true;
+    }
+
+    private static void prune(long now) {
+        for (int i = ACTIVE.size() - 1; i >= 0; i--) {
+            final SynthSoundInstance sound = ACTIVE.get(i);
+            final long lastSeen = Math.max(sound.getStartTime(), sound.getLastTicked());
+            if (now - lastSeen > TICK_TIMEOUT_MILLIS || sound.isDone()) {
+                ACTIVE.set(i, ACTIVE.get(ACTIVE.size() - 1));
+                ACTIVE.remove(ACTIVE.size() - 1);
+            }
+        }
+    }
+
+    private static float priority(SynthSoundInstance sound, long now) {
+        // a held sustained sound does not fade, only its release does
+        final float age = sound.isSustained() && !sound.isReleased() ? 0.0f : Math.max(0L, now - sound.getStartTime());
+        float priority = sound.getNoteVolume() / (1.0f + age / (sound.isPercussion() ? PERCUSSION_DECAY_MILLIS : VOICE_DECAY_MILLIS));
+        if (sound.isReleased()) priority *= RELEASED_FACTOR;
+        return priority;
+    }
+
+    /**
+     * Stops tracking all sounds, they end on their own
+     */
+    public static synchronized void clear() {
+        ACTIVE.clear();
+    }
+
+    public static synchronized String summary() {
+        return "Client polyphony: %d active, %d played, %d dropped, %d stolen".formatted(ACTIVE.size(), played, dropped, stolen);
+    }
+
+}
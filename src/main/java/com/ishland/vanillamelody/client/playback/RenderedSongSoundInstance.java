@@ -0,0 +1,113 @@
+package com.ishland.vanillamelody.client.playback;
+
+import net.minecraft.client.sound.AbstractSoundInstance;
+import net.minecraft.client.sound.AudioStream;
+import net.minecraft.client.sound.Sound;
+import net.minecraft.client.sound.SoundManager;
+import net.minecraft.client.sound.TickableSoundInstance;
+import net.minecraft.client.sound.WeightedSoundSet;
+import net.minecraft.sound.SoundCategory;
+import net.minecraft.util.Identifier;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a rendered song, starting at the position the station has reached when the stream is opened
+ * <p>
+ * The sound is not registered, the sound system is handed the rendered file through {@link #openStream()}.
+ */
+public class RenderedSongSoundInstance extends AbstractSoundInstance implements TickableSoundInstance {
+
+    private static final Identifier ID = new Identifier("vanillamelody", "rendered_song");
+
+    private final SongRenderer.RenderedSong song;
+    private final long startPosition;
+    private final long startTime = System.nanoTime();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param startPosition song position in microseconds at the time of creation
+     */
+    public RenderedSongSoundInstance(SongRenderer.RenderedSong song, long startPosition) {
+        super(ID, SoundCategory.RECORDS);
+        this.song = song;
+        this.startPosition = startPosition;
+        this.volume = 1.0f;
+        this.pitch = 1.0f;
+        this.relative = true;
+        this.attenuationType = AttenuationType.NONE;
+    }
+
+    @Override
+    public WeightedSoundSet getSoundSet(SoundManager soundManager) {
+        this.sound = new Sound(ID.toString(), 1.0f, 1.0f, 1, Sound.RegistrationType.FILE, true, false, 16);
+        final WeightedSoundSet soundSet = new WeightedSoundSet(ID, null);
+        soundSet.add(this.sound);
+        return soundSet;
+    }
+
+    /**
+     * @return song position in microseconds this sound should be playing now
+     */
+    public long getExpectedPosition() {
+        return this.startPosition + (System.nanoTime() - this.startTime) / 1000L;
+    }
+
+    public AudioStream openStream() throws IOException {
+        return new PcmFileAudioStream(this.song, this.song.frameAt(getExpectedPosition()));
+    }
+
+    public void stop() {
+        this.stopped = true;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.stopped;
+    }
+
+    @Override
+    public void tick() {
+    }
+
+    private static final class PcmFileAudioStream implements AudioStream {
+
+        private final FileChannel channel;
+        private long position;
+
+        private PcmFileAudioStream(SongRenderer.RenderedSong song, long frame) throws IOException {
+            this.channel = FileChannel.open(song.path(), StandardOpenOption.READ);
+            this.position = frame * SongRenderer.FRAME_BYTES;
+        }
+
+        @Override
+        public AudioFormat getFormat() {
+            return SongRenderer.FORMAT;
+        }
+
+        @Override
+        public ByteBuffer getBuffer(int size) throws IOException {
+            final int length = Math.max(SongRenderer.FRAME_BYTES, size - size % SongRenderer.FRAME_BYTES);
+            // handed to OpenAL, has to be direct
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            while (buffer.hasRemaining()) {
+                final int read = this.channel.read(buffer, this.position);
+                if (read < 0) break;
+                this.position += read;
+            }
+            buffer.flip();
+            buffer.limit(buffer.limit() - buffer.limit() % SongRenderer.FRAME_BYTES);
+            return buffer.hasRemaining() ? buffer : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+}
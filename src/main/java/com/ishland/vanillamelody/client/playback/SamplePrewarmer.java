@@ -0,0 +1,85 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.ishland.vanillamelody.common.playback.NoteUtil;
+import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.sound.Sound;
+import net.minecraft.client.sound.SoundManager;
+import net.minecraft.client.sound.StaticSound;
+import net.minecraft.client.sound.WeightedSoundSet;
+import net.minecraft.util.Identifier;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the note block samples an instrument bank can play before the first note needs them
+ * <p>
+ * Otherwise the sound engine decodes every sample on first use, which delays the first notes of each
+ * instrument and octave.
+ */
+public class SamplePrewarmer {
+
+    // widest pitch bend of the synthesizer, in keys
+    private static final int PITCH_BEND_RANGE = 2;
+
+    // stations sharing a bank share the decoded instance, only touched by the client scheduler
+    private static Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> lastInstruments = null;
+    private static Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> lastPercussions = null;
+
+    public static void prewarm(Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments, Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions) {
+        if (instruments == lastInstruments && percussions == lastPercussions) return;
+        lastInstruments = instruments;
+        lastPercussions = percussions;
+        final long startTime = System.nanoTime();
+        final ObjectOpenHashSet<Identifier> soundIds = collectSoundIds(instruments, percussions);
+        final MinecraftClient client = MinecraftClient.getInstance();
+        // the sound loader cache is not thread safe, decoding itself happens on the worker pool
+        client.execute(() -> {
+            final SoundManager soundManager = client.getSoundManager();
+            final ObjectOpenHashSet<Identifier> locations = new ObjectOpenHashSet<>();
+            for (Identifier soundId : soundIds) {
+                final WeightedSoundSet soundSet = soundManager.get(soundId);
+                if (soundSet == null) continue;
+                final Sound sound = soundSet.getSound();
+                if (sound == null || sound == SoundManager.MISSING_SOUND || sound.isStreamed()) continue;
+                locations.add(sound.getLocation());
+            }
+            final AtomicInteger loaded = new AtomicInteger();
+            final ReferenceArrayList<CompletableFuture<StaticSound>> futures = new ReferenceArrayList<>(locations.size());
+            for (Identifier location : locations) {
+                futures.add(soundManager.soundSystem.soundLoader.loadStatic(location).whenComplete((staticSound, throwable) -> {
+                    if (throwable == null && staticSound != null) loaded.incrementAndGet();
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).whenComplete((unused, throwable) -> {
+                System.out.println("Pre-warmed %d of %d note samples in %.1fms".formatted(loaded.get(), locations.size(), (System.nanoTime() - startTime) / 1_000_000.0));
+            });
+        });
+    }
+
+    /**
+     * Returns every sound id {@link NoteUtil#getSoundId(byte, short, short)} can produce for the bank, together with
+     * the {@link NoteUtil#getBaseSoundId(byte) base sound} of every instrument that clients actually play
+     */
+    static ObjectOpenHashSet<Identifier> collectSoundIds(Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments, Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions) {
+        final ObjectOpenHashSet<Identifier> soundIds = new ObjectOpenHashSet<>();
+        for (MidiInstruments.MidiInstrument instrument : instruments.values()) {
+            soundIds.add(NoteUtil.getBaseSoundId((byte) instrument.mcInstrument));
+            // the octave suffix only grows with the key, so stepping whole keys over the bend range covers every suffix
+            final int baseKey = instrument.octaveModifier * 12;
+            for (int key = baseKey - PITCH_BEND_RANGE; key <= baseKey + 127 + PITCH_BEND_RANGE; key++) {
+                soundIds.add(NoteUtil.getSoundId((byte) instrument.mcInstrument, (short) key, (short) 0));
+            }
+        }
+        for (MidiInstruments.MidiPercussion percussion : percussions.values()) {
+            soundIds.add(NoteUtil.getBaseSoundId((byte) percussion.mcInstrument));
+            soundIds.add(NoteUtil.getSoundId((byte) percussion.mcInstrument, (short) percussion.midiKey, (short) 0));
+        }
+        return soundIds;
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Disk cache of synced midi files kept in a single append-only pack file
+ * <p>
+ * The pack is memory-mapped and indexed in memory, so a lookup is a map probe plus a mapped read.
+ * Records carry a CRC32C instead of being hashed again when read. Once the pack outgrows its budget,
+ * the most recently used records are copied into a new generation of the pack and the old one is deleted.
+ */
+public class SongPackFile {
+
+    private static final int MAGIC = 0x564D504B; // VMPK
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    // sha256, length, crc32c
+    private static final int RECORD_HEADER_SIZE = DigestUtils.SHA256_BYTES + 4 + 4;
+
+    private static final class Entry {
+
+        private final byte[] sha256;
+        private final long offset;
+        private final int length;
+        private final int crc;
+        private long lastAccess;
+
+        private Entry(byte[] sha256, long offset, int length, int crc, long lastAccess) {
+            this.sha256 = sha256;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.lastAccess = lastAccess;
+        }
+
+        private long recordSize() {
+            return RECORD_HEADER_SIZE + (long) length;
+        }
+    }
+
+    private final Path directory;
+    private final String name;
+    private final long maxBytes;
+
+    private final Object2ObjectOpenHashMap<String, Entry> index = new Object2ObjectOpenHashMap<>();
+    private long accessCounter = 0L;
+    private int generation = 0;
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private MappedByteBuffer mapped;
+    private long size = 0L;
+
+    public SongPackFile(Path directory, String name, long maxBytes) {
+        this.directory = directory;
+        this.name = name;
+        this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+        try {
+            open();
+        } catch (IOException e) {
+            System.out.println("Failed to open midi pack file, disk cache disabled");
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private Path packPath(int generation) {
+        return directory.resolve("%s.%d.pack".formatted(name, generation));
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        // the newest generation wins, older ones are left over from compactions
+        int newest = -1;
+        final ReferenceArrayList<Path> packs = new ReferenceArrayList<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                final int packGeneration = parseGeneration(path.getFileName().toString());
+                if (packGeneration < 0) continue;
+                packs.add(path);
+                newest = Math.max(newest, packGeneration);
+            }
+        }
+        this.generation = Math.max(0, newest);
+        for (Path path : packs) {
+            if (!path.equals(packPath(this.generation))) {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        this.channel = FileChannel.open(packPath(this.generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = this.channel.size();
+        if (!hasValidHeader()) {
+            this.channel.truncate(0L);
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0L);
+            this.size = FILE_HEADER_SIZE;
+        }
+        scan();
+    }
+
+    private int parseGeneration(String fileName) {
+        final String prefix = this.name + ".";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(".pack")) return -1;
+        try {
+            return Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - ".pack".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean hasValidHeader() throws IOException {
+        if (this.size < FILE_HEADER_SIZE) return false;
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        this.channel.read(header, 0L);
+        header.flip();
+        return header.getInt() == MAGIC && header.getInt() == VERSION;
+    }
+
+    /**
+     * Rebuilds the index from the record headers, a torn record at the end is cut off
+     */
+    private void scan() throws IOException {
+        final MappedByteBuffer mapped = map();
+        long position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= this.size) {
+            final byte[] sha256 = new byte[DigestUtils.SHA256_BYTES];
+            mapped.get((int) position, sha256);
+            final int length = mapped.getInt((int) position + DigestUtils.SHA256_BYTES);
+            final int crc = mapped.getInt((int) position + DigestUtils.SHA256_BYTES + 4);
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > this.size) break;
+            this.index.put(DigestUtils.bytesToHex(sha256), new Entry(sha256, position + RECORD_HEADER_SIZE, length, crc, ++this.accessCounter));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position != this.size) {
+            this.channel.truncate(position);
+            this.size = position;
+            this.mapped = null;
+        }
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        if (this.mapped == null || this.mapped.capacity() < this.size) {
+            this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0L, this.size);
+        }
+        return this.mapped;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+    }
+
+    public synchronized boolean contains(byte[] sha256) {
+        return this.index.containsKey(DigestUtils.bytesToHex(sha256));
+    }
+
+    @Nullable
+    public synchronized byte[] get(byte[] sha256) {
+        if (this.channel == null) return null;
+        final String key = DigestUtils.bytesToHex(sha256);
+        final Entry entry = this.index.get(key);
+        if (entry == null) return null;
+        try {
+            final byte[] bytes = new byte[entry.length];
+            map().get((int) entry.offset, bytes);
+            if (crc(bytes) != entry.crc) {
+                System.out.println("Corrupted midi file %s in pack file".formatted(key));
+                this.index.remove(key);
+                return null;
+            }
+            entry.lastAccess = ++this.accessCounter;
+            return bytes;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public synchronized void put(byte[] sha256, byte[] bytes) {
+        if (this.channel == null) return;
+        final String key = DigestUtils.bytesToHex(sha256);
+        final Entry existing = this.index.get(key);
+        if (existing != null) {
+            existing.lastAccess = ++this.accessCounter;
+            return;
+        }
+        if (RECORD_HEADER_SIZE + (long) bytes.length > this.maxBytes) return;
+        try {
+            final int crc = crc(bytes);
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+            record.put(sha256).putInt(bytes.length).putInt(crc).put(bytes).flip();
+            writeFully(record, this.size);
+            this.index.put(key, new Entry(sha256, this.size + RECORD_HEADER_SIZE, bytes.length, crc, ++this.accessCounter));
+            this.size += RECORD_HEADER_SIZE + bytes.length;
+            if (this.size > this.maxBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies the most recently used records into a new generation until three quarters of the budget are used
+     */
+    private void compact() throws IOException {
+        final long startTime = System.nanoTime();
+        final ReferenceArrayList<Entry> entries = new ReferenceArrayList<>(this.index.values());
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.lastAccess).reversed());
+
+        final MappedByteBuffer source = map();
+        final int newGeneration = this.generation + 1;
+        final Object2ObjectOpenHashMap<String, Entry> newIndex = new Object2ObjectOpenHashMap<>();
+        long newSize = FILE_HEADER_SIZE;
+        try (FileChannel target = FileChannel.open(packPath(newGeneration), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) target.write(header);
+            final long budget = this.maxBytes / 4 * 3;
+            for (Entry entry : entries) {
+                if (newSize + entry.recordSize() > budget) continue;
+                final ByteBuffer record = source.slice((int) entry.offset - RECORD_HEADER_SIZE, (int) entry.recordSize());
+                while (record.hasRemaining()) target.write(record);
+                newIndex.put(DigestUtils.bytesToHex(entry.sha256), new Entry(entry.sha256, newSize + RECORD_HEADER_SIZE, entry.length, entry.crc, entry.lastAccess));
+                newSize += entry.recordSize();
+            }
+            target.force(false);
+        }
+
+        final Path oldPath = packPath(this.generation);
+        final long oldSize = this.size;
+        final int oldCount = this.index.size();
+        this.channel.close();
+        this.mapped = null;
+        try {
+            Files.deleteIfExists(oldPath);
+        } catch (IOException e) {
+            // still mapped on some platforms, removed on next start
+        }
+        this.generation = newGeneration;
+        this.channel = FileChannel.open(packPath(newGeneration), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = newSize;
+        this.index.clear();
+        this.index.putAll(newIndex);
+        System.out.println("Compacted midi pack file from %d songs (%d bytes) to %d songs (%d bytes) in %.2fms".formatted(
+                oldCount, oldSize, this.index.size(), this.size, (System.nanoTime() - startTime) / 1_000_000.0));
+    }
+
+    private static int crc(byte[] bytes) {
+        final CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private void close() {
+        this.index.clear();
+        this.mapped = null;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.channel = null;
+        }
+    }
+
+}
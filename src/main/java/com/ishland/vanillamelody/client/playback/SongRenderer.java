@@ -0,0 +1,407 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ishland.vanillamelody.common.playback.NoteUtil;
+import com.ishland.vanillamelody.common.playback.PlayList;
+import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
+import com.ishland.vanillamelody.common.playback.data.Note;
+import com.ishland.vanillamelody.common.playback.sequencer.PackedSequence;
+import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
+import com.ishland.vanillamelody.common.playback.synth.NoteReceiver;
+import com.ishland.vanillamelody.common.playback.timeline.NoteTimelineCompiler;
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import com.ishland.vanillamelody.common.util.GameDirs;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.sound.OggAudioStream;
+import net.minecraft.client.sound.Sound;
+import net.minecraft.client.sound.SoundManager;
+import net.minecraft.client.sound.WeightedSoundSet;
+import net.minecraft.resource.Resource;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Mixes whole songs offline into 16-bit stereo PCM files, so that a song plays as a single streaming sound
+ * <p>
+ * The song runs through a synthesizer in simulated time just like on a live client, and every note is mixed
+ * from the note block sample the sound engine would have played for it. Renders are cached on disk by song
+ * and instrument bank.
+ */
+public class SongRenderer {
+
+    public static final int SAMPLE_RATE = 44100;
+    public static final int FRAME_BYTES = 4;
+    public static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 2, true, false);
+
+    private static final Path RENDER_DIR = GameDirs.gameDir()
+            .resolve("cache").resolve("vanillamelody").resolve("rendered");
+    private static final int MAX_RENDERED_SONGS = 8;
+
+    // lets the last notes ring out
+    private static final long TAIL_MICROS = 2_000_000L;
+    // live notes play for at least this long, see SynthSoundInstance
+    private static final long MIN_NOTE_MICROS = 400_000L;
+    // fade applied when a note is cut off before its sample ends
+    private static final long CUT_FADE_MICROS = 10_000L;
+    // fade of a sustained note after release, see SynthSoundInstance
+    private static final long RELEASE_FADE_MICROS = 150_000L;
+    private static final int BLOCK_FRAMES = SAMPLE_RATE;
+
+    private static final ExecutorService RENDERER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Song Renderer").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build()
+    );
+
+    private static final ConcurrentHashMap<String, CompletableFuture<RenderedSong>> RENDERS = new ConcurrentHashMap<>();
+
+    public record RenderedSong(Path path, long frames) {
+
+        public long frameAt(long micros) {
+            return Math.max(0L, Math.min(frames, micros * SAMPLE_RATE / 1_000_000L));
+        }
+
+    }
+
+    private record Sample(float[] data, int sampleRate, float volume, float pitch) {
+    }
+
+    /**
+     * @return a future completing with the rendered song, or with null if rendering failed
+     */
+    public static CompletableFuture<RenderedSong> render(PlayList.SongInfo song, MidiInstruments.Bank bank) {
+        final byte[] encodedBank = MidiInstruments.encodeBank(bank.instruments(), bank.percussions());
+        final String key = DigestUtils.bytesToHex(song.sha256()) + "-" + DigestUtils.bytesToHex(DigestUtils.sha256(encodedBank)).substring(0, 16);
+        final CompletableFuture<RenderedSong> future = RENDERS.computeIfAbsent(key, unused -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return renderOrLoad(key, song, bank);
+            } catch (Throwable t) {
+                System.out.println("Failed to render " + song.relativeFilePath());
+                t.printStackTrace();
+                return null;
+            }
+        }, RENDERER));
+        // the disk cache takes over once done
+        future.whenComplete((rendered, throwable) -> RENDERS.remove(key, future));
+        return future;
+    }
+
+    private static RenderedSong renderOrLoad(String key, PlayList.SongInfo song, MidiInstruments.Bank bank) throws IOException {
+        final Path path = RENDER_DIR.resolve(key + ".pcm");
+        if (Files.isRegularFile(path)) {
+            path.toFile().setLastModified(System.currentTimeMillis());
+            return new RenderedSong(path, Files.size(path) / FRAME_BYTES);
+        }
+
+        final long startTime = System.nanoTime();
+        final PackedSequence sequence = song.sequence();
+        final Recorder recorder = record(sequence, bank);
+
+        final Sample[] samples = new Sample[recorder.palette.size()];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = loadSample(recorder.palette.get(i));
+        }
+
+        Files.createDirectories(RENDER_DIR);
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        final long frames;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            frames = mix(recorder, samples, (sequence.getMicrosecondLength() + TAIL_MICROS) * SAMPLE_RATE / 1_000_000L, channel);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        prune();
+        System.out.println("Rendered %s: %d notes into %.1fMiB in %.2fs".formatted(
+                song.relativeFilePath(), recorder.size, frames * FRAME_BYTES / 1024.0 / 1024.0, (System.nanoTime() - startTime) / 1_000_000_000.0));
+        return new RenderedSong(path, frames);
+    }
+
+    /**
+     * Decodes the sample of a sound event to mono floats
+     */
+    @Nullable
+    private static Sample loadSample(Identifier soundEvent) {
+        final MinecraftClient client = MinecraftClient.getInstance();
+        final WeightedSoundSet soundSet = client.getSoundManager().get(soundEvent);
+        if (soundSet == null) return null;
+        final Sound sound = soundSet.getSound();
+        if (sound == null || sound == SoundManager.MISSING_SOUND) return null;
+        try (Resource resource = client.getResourceManager().getResource(sound.getLocation());
+             OggAudioStream stream = new OggAudioStream(resource.getInputStream())) {
+            final AudioFormat format = stream.getFormat();
+            final ByteBuffer pcm = stream.getBuffer().order(ByteOrder.nativeOrder());
+            final int channels = format.getChannels();
+            final int frames = pcm.remaining() / (2 * channels);
+            final float[] data = new float[frames];
+            final int base = pcm.position();
+            for (int frame = 0; frame < frames; frame++) {
+                float value = 0.0f;
+                for (int channel = 0; channel < channels; channel++) {
+                    value += pcm.getShort(base + (frame * channels + channel) * 2);
+                }
+                data[frame] = value / (32768.0f * channels);
+            }
+            return new Sample(data, (int) format.getSampleRate(), sound.getVolume(), sound.getPitch());
+        } catch (IOException e) {
+            System.out.println("Failed to load sample " + sound.getLocation());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Runs the song through a synthesizer in simulated time
+     */
+    static Recorder record(PackedSequence sequence, MidiInstruments.Bank bank) {
+        final Recorder recorder = new Recorder(Math.max(16, sequence.size() / 2));
+        final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(recorder);
+        recorder.synthesizer = synthesizer;
+        synthesizer.reset(true);
+        synthesizer.setInstrumentBank(bank.instruments());
+        synthesizer.setPercussionBank(bank.percussions());
+        synthesizer.setSustainedVoices(true);
+        NoteTimelineCompiler.simulate(sequence, synthesizer, recorder::advance);
+        recorder.finish(sequence.getMicrosecondLength());
+        return recorder;
+    }
+
+    /**
+     * Mixes all notes block by block and writes them as 16-bit little endian stereo frames
+     *
+     * @return number of frames written
+     */
+    private static long mix(Recorder notes, Sample[] samples, long totalFrames, FileChannel channel) throws IOException {
+        final float[] block = new float[BLOCK_FRAMES * 2];
+        final ByteBuffer bytes = ByteBuffer.allocate(BLOCK_FRAMES * FRAME_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        final IntArrayList active = new IntArrayList();
+        int next = 0;
+        long written = 0L;
+        for (long blockStart = 0L; blockStart < totalFrames; blockStart += BLOCK_FRAMES) {
+            final long blockEnd = Math.min(blockStart + BLOCK_FRAMES, totalFrames);
+            Arrays.fill(block, 0.0f);
+            while (next < notes.size && toFrames(notes.starts[next]) < blockEnd) {
+                if (samples[notes.sounds[next]] != null) active.add(next);
+                next++;
+            }
+            for (int i = active.size() - 1; i >= 0; i--) {
+                final int note = active.getInt(i);
+                if (mixNote(notes, note, samples[notes.sounds[note]], blockStart, blockEnd, block)) {
+                    active.set(i, active.getInt(active.size() - 1));
+                    active.removeInt(active.size() - 1);
+                }
+            }
+
+            bytes.clear();
+            final int samplesInBlock = (int) (blockEnd - blockStart) * 2;
+            for (int i = 0; i < samplesInBlock; i++) {
+                bytes.putShort((short) (Math.max(-1.0f, Math.min(1.0f, block[i])) * 32767.0f));
+            }
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                written += channel.write(bytes);
+            }
+        }
+        return written / FRAME_BYTES;
+    }
+
+    /**
+     * @return whether the note has ended within this block
+     */
+    private static boolean mixNote(Recorder notes, int note, Sample sample, long blockStart, long blockEnd, float[] block) {
+        final float[] data = sample.data;
+        final double step = (double) notes.pitches[note] * sample.pitch * sample.sampleRate / SAMPLE_RATE;
+        if (data.length < 2 || step <= 0.0) return true;
+        final boolean sustained = notes.sustained[note];
+        final long startFrame = toFrames(notes.starts[note]);
+        final long sampleFrames = (long) ((data.length - 1) / step);
+
+        // same lifetime as the live sound instance
+        final long fadeStart;
+        final long endFrame;
+        final long end = notes.ends[note];
+        if (end == Long.MAX_VALUE) {
+            fadeStart = endFrame = startFrame + sampleFrames;
+        } else {
+            final long held = toFrames(Math.max(MIN_NOTE_MICROS, end - notes.starts[note]));
+            if (sustained) {
+                fadeStart = startFrame + held;
+                endFrame = fadeStart + toFrames(RELEASE_FADE_MICROS);
+            } else if (held < sampleFrames) {
+                fadeStart = startFrame + held;
+                endFrame = Math.min(startFrame + sampleFrames, fadeStart + toFrames(CUT_FADE_MICROS));
+            } else {
+                fadeStart = endFrame = startFrame + sampleFrames;
+            }
+        }
+
+        final float gain = notes.volumes[note] * sample.volume;
+        final float pan = Math.max(-1.0f, Math.min(1.0f, notes.pannings[note] / 64.0f));
+        final float left = gain * Math.min(1.0f, 1.0f - pan);
+        final float right = gain * Math.min(1.0f, 1.0f + pan);
+        final long from = Math.max(blockStart, startFrame);
+        final long to = Math.min(blockEnd, endFrame);
+        for (long frame = from; frame < to; frame++) {
+            double position = (frame - startFrame) * step;
+            if (sustained) position %= data.length - 1;
+            final int index = (int) position;
+            final float fraction = (float) (position - index);
+            float value = data[index] + (data[index + 1] - data[index]) * fraction;
+            if (frame >= fadeStart) {
+                value *= 1.0f - (frame - fadeStart) / (float) (endFrame - fadeStart);
+            }
+            final int offset = (int) (frame - blockStart) * 2;
+            block[offset] += value * left;
+            block[offset + 1] += value * right;
+        }
+        return endFrame <= blockEnd;
+    }
+
+    private static long toFrames(long micros) {
+        return micros * SAMPLE_RATE / 1_000_000L;
+    }
+
+    /**
+     * Keeps the most recently used renders
+     */
+    private static void prune() throws IOException {
+        final List<Path> renders;
+        try (Stream<Path> stream = Files.list(RENDER_DIR)) {
+            renders = stream
+                    .filter(path -> path.getFileName().toString().endsWith(".pcm"))
+                    .sorted(Comparator.comparingLong((Path path) -> path.toFile().lastModified()).reversed())
+                    .toList();
+        }
+        for (int i = MAX_RENDERED_SONGS; i < renders.size(); i++) {
+            try {
+                Files.deleteIfExists(renders.get(i));
+            } catch (IOException e) {
+                // still being streamed on some platforms, removed by a later render
+            }
+        }
+    }
+
+    /**
+     * Collects the notes of a simulated run along with how long each key was held
+     */
+    static class Recorder implements NoteReceiver {
+
+        private final Object2IntOpenHashMap<Identifier> paletteIndex = new Object2IntOpenHashMap<>();
+        final ReferenceArrayList<Identifier> palette = new ReferenceArrayList<>();
+        // notes whose key is still held, with their voice handles
+        private final IntArrayList held = new IntArrayList();
+        private final LongArrayList heldVoices = new LongArrayList();
+
+        private MinecraftMidiSynthesizer synthesizer;
+        private long now = 0L;
+        private long nextReleaseCheck = 0L;
+        int size = 0;
+        long[] starts;
+        long[] ends;
+        short[] sounds;
+        private float[] volumes;
+        float[] pitches;
+        private byte[] pannings;
+        boolean[] sustained;
+
+        private Recorder(int capacity) {
+            this.paletteIndex.defaultReturnValue(-1);
+            this.starts = new long[capacity];
+            this.ends = new long[capacity];
+            this.sounds = new short[capacity];
+            this.volumes = new float[capacity];
+            this.pitches = new float[capacity];
+            this.pannings = new byte[capacity];
+            this.sustained = new boolean[capacity];
+        }
+
+        private void advance(long micros) {
+            this.now = micros;
+            if (micros < this.nextReleaseCheck) return;
+            this.nextReleaseCheck = micros + NoteTimelineCompiler.SYNTH_TICK_MICROS;
+            for (int i = this.held.size() - 1; i >= 0; i--) {
+                if (this.synthesizer.isVoiceDone(this.heldVoices.getLong(i))) {
+                    this.ends[this.held.getInt(i)] = micros;
+                    this.held.set(i, this.held.getInt(this.held.size() - 1));
+                    this.held.removeInt(this.held.size() - 1);
+                    this.heldVoices.set(i, this.heldVoices.getLong(this.heldVoices.size() - 1));
+                    this.heldVoices.removeLong(this.heldVoices.size() - 1);
+                }
+            }
+        }
+
+        private void finish(long length) {
+            for (int i = 0; i < this.held.size(); i++) {
+                this.ends[this.held.getInt(i)] = length;
+            }
+            this.held.clear();
+            this.heldVoices.clear();
+        }
+
+        @Override
+        public void playNote(Note note, BooleanSupplier isDone) {
+            record(NoteUtil.getBaseSoundId(note.mcInstrument()), note.volume(), note.rawPitch(), note.panning(), false);
+        }
+
+        @Override
+        public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+            if (rawPitch < 0.05f) return;
+            // same sample and pitch as SynthSoundInstance, the octave suffixed sound sets are not shipped
+            final int index = record(NoteUtil.getBaseSoundId(mcInstrument), volume, rawPitch, panning, synthesizer.isSustainedVoice(voice));
+            if (voice != MinecraftMidiSynthesizer.NO_VOICE) {
+                this.ends[index] = -1L;
+                this.held.add(index);
+                this.heldVoices.add(voice);
+            }
+        }
+
+        private int record(Identifier id, float volume, float pitch, int panning, boolean sustained) {
+            int sound = this.paletteIndex.getInt(id);
+            if (sound == -1) {
+                sound = this.palette.size();
+                this.palette.add(id);
+                this.paletteIndex.put(id, sound);
+            }
+
+            if (this.size == this.starts.length) {
+                final int capacity = this.size * 2;
+                this.starts = Arrays.copyOf(this.starts, capacity);
+                this.ends = Arrays.copyOf(this.ends, capacity);
+                this.sounds = Arrays.copyOf(this.sounds, capacity);
+                this.volumes = Arrays.copyOf(this.volumes, capacity);
+                this.pitches = Arrays.copyOf(this.pitches, capacity);
+                this.pannings = Arrays.copyOf(this.pannings, capacity);
+                this.sustained = Arrays.copyOf(this.sustained, capacity);
+            }
+            final int index = this.size++;
+            this.starts[index] = this.now;
+            this.ends[index] = Long.MAX_VALUE;
+            this.sounds[index] = (short) sound;
+            this.volumes[index] = volume;
+            this.pitches[index] = pitch;
+            this.pannings[index] = (byte) panning;
+            this.sustained[index] = sustained;
+            return index;
+        }
+    }
+
+}
@@ -2,11 +2,13 @@ package com.ishland.vanillamelody.client.playback;
 
 import com.ishland.vanillamelody.common.playback.NoteUtil;
 import com.ishland.vanillamelody.common.playback.data.Note;
+import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
 import net.minecraft.client.sound.PositionedSoundInstance;
 import net.minecraft.client.sound.SoundInstance;
 import net.minecraft.client.sound.TickableSoundInstance;
 import net.minecraft.sound.SoundCategory;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3d;
 
 import java.util.function.BooleanSupplier;
@@ -29,25 +31,143 @@ public class SynthSoundInstance extends PositionedSoundInstance implements Ticka
                 pos.y,
                 pos.z,
                 true,
-                isDone
+                isDone,
+                null,
+                MinecraftMidiSynthesizer.NO_VOICE,
+                Long.MAX_VALUE,
+                false,
+                0.0f
         );
     }
 
+    public static SynthSoundInstance create(MinecraftMidiSynthesizer synthesizer, byte mcInstrument, float volume, int panning, float rawPitch, long voice, long voicePlayableUntil, float yaw) {
+        final float offset = (float) (panning / 16.0);
+        final float yawRadians = yaw * (float) (Math.PI / 180.0);
+        final boolean sustained = synthesizer.isSustainedVoice(voice);
+        return new SynthSoundInstance(
+                NoteUtil.getBaseSoundId(mcInstrument),
+                SoundCategory.RECORDS,
+                volume,
+                rawPitch,
+                sustained,
+                0,
+                SoundInstance.AttenuationType.LINEAR,
+                MathHelper.cos(yawRadians) * offset,
+                0,
+                MathHelper.sin(yawRadians) * offset,
+                true,
+                null,
+                synthesizer,
+                voice,
+                voicePlayableUntil,
+                sustained,
+                yawRadians
+        );
+    }
+
+    // fade out of a sustained sound once its key is released
+    private static final long RELEASE_MILLIS = 150L;
+    // a sustained sound whose voice the synthesizer stopped updating is ended
+    private static final long SUSTAIN_TIMEOUT_MILLIS = 1000L;
+
     private final BooleanSupplier isDone;
-    private long playableUntil = System.currentTimeMillis() + 400L;
+    private final MinecraftMidiSynthesizer synthesizer;
+    private final long voice;
+    private final long voicePlayableUntil;
+    private final long startTime = System.currentTimeMillis();
+    private long playableUntil = startTime + 400L;
+    // set by the sound engine while the sound is playing
+    private volatile long lastTicked = 0L;
+    private volatile boolean stolen = false;
+    // a sustained sound loops its sample for as long as the key is held, following the voice in tick()
+    private final boolean sustained;
+    private final float yawRadians;
+    private volatile long releasedAt = 0L;
+    private float releaseVolume;
 
-    private SynthSoundInstance(Identifier id, SoundCategory category, float volume, float pitch, boolean repeat, int repeatDelay, AttenuationType attenuationType, double x, double y, double z, boolean relative, BooleanSupplier isDone) {
+    private SynthSoundInstance(Identifier id, SoundCategory category, float volume, float pitch, boolean repeat, int repeatDelay, AttenuationType attenuationType, double x, double y, double z, boolean relative, BooleanSupplier isDone, MinecraftMidiSynthesizer synthesizer, long voice, long voicePlayableUntil, boolean sustained, float yawRadians) {
         super(id, category, volume, pitch, repeat, repeatDelay, attenuationType, x, y, z, relative);
         this.isDone = isDone;
+        this.synthesizer = synthesizer;
+        this.voice = voice;
+        this.voicePlayableUntil = voicePlayableUntil;
+        this.sustained = sustained;
+        this.yawRadians = yawRadians;
     }
 
     @Override
     public boolean isDone() {
-        return System.currentTimeMillis() > playableUntil && this.isDone != null && this.isDone.getAsBoolean();
+        if (stolen) return true;
+        final long now = System.currentTimeMillis();
+        if (now <= playableUntil) return false;
+        if (this.sustained) {
+            return (this.releasedAt != 0L && now - this.releasedAt >= RELEASE_MILLIS) || now > this.voicePlayableUntil;
+        }
+        if (this.synthesizer != null) {
+            return this.synthesizer.isVoiceDone(this.voice) || System.currentTimeMillis() > this.voicePlayableUntil;
+        }
+        return this.isDone != null && this.isDone.getAsBoolean();
     }
 
     @Override
     public void tick() {
+        final long now = System.currentTimeMillis();
+        this.lastTicked = now;
+        if (!this.sustained) return;
+        if (this.releasedAt == 0L) {
+            if (this.synthesizer.isVoiceDone(this.voice) || now - this.synthesizer.getVoiceUpdateTime(this.voice) > SUSTAIN_TIMEOUT_MILLIS) {
+                this.releaseVolume = this.volume;
+                this.releasedAt = now;
+            } else {
+                final float offset = (float) (this.synthesizer.getVoicePanning(this.voice) / 16.0);
+                this.volume = this.synthesizer.getVoiceVolume(this.voice);
+                this.pitch = this.synthesizer.getVoiceRawPitch(this.voice);
+                this.x = MathHelper.cos(this.yawRadians) * offset;
+                this.z = MathHelper.sin(this.yawRadians) * offset;
+                return;
+            }
+        }
+        this.volume = this.releaseVolume * Math.max(0.0f, 1.0f - (now - this.releasedAt) / (float) RELEASE_MILLIS);
+    }
+
+    public boolean isSustained() {
+        return this.sustained;
+    }
+
+    /**
+     * Ends the sound on the next sound engine tick to free its channel
+     */
+    public void steal() {
+        this.stolen = true;
+    }
+
+    /**
+     * @return volume of the note, unlike {@link #getVolume()} usable before the sound is loaded
+     */
+    public float getNoteVolume() {
+        return this.volume;
+    }
+
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    public long getLastTicked() {
+        return this.lastTicked;
+    }
+
+    /**
+     * @return whether this is a percussion hit rather than a held voice
+     */
+    public boolean isPercussion() {
+        return this.synthesizer != null && this.voice == MinecraftMidiSynthesizer.NO_VOICE;
+    }
 
+    /**
+     * @return whether the key of this sound has been released, it only keeps playing its tail
+     */
+    public boolean isReleased() {
+        if (this.sustained) return this.releasedAt != 0L;
+        return this.synthesizer != null && this.synthesizer.isVoiceDone(this.voice);
     }
 }
@@ -1,6 +1,6 @@
 package com.ishland.vanillamelody.common;
 
-import net.fabricmc.loader.api.FabricLoader;
+import com.ishland.vanillamelody.common.util.GameDirs;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,6 +19,19 @@ public class Config {
     public static boolean DEFAULT_RADIO_ENABLED;
     public static boolean ENABLE_SERVERSIDE_PLAYBACK;
     public static boolean ALLOW_NON_OPERATOR_RADIO_CHANGE;
+    public static boolean LAZY_SONG_LOADING;
+    public static int SONG_CACHE_SIZE_MB;
+    public static boolean WATCH_SONG_DIRECTORIES;
+    public static boolean COMPRESS_MIDI_TRANSFERS;
+    public static int PREFETCH_UPCOMING_SONGS;
+    public static int CLIENT_SONG_CACHE_SIZE_MB;
+    public static int CLIENT_DISK_CACHE_SIZE_MB;
+    public static boolean CLIENT_SCHEDULER_STATS;
+    public static int CLIENT_MAX_VOICES;
+    public static boolean CLIENT_BATCHED_NOTE_SUBMISSION;
+    public static boolean CLIENT_SUSTAINED_VOICES;
+    public static boolean CLIENT_OFFLINE_RENDER;
+    public static boolean CLIENT_PREWARM_SAMPLES;
 
     public static void init() {
     }
@@ -26,7 +39,7 @@ public class Config {
     public static void reload() {
         final Properties properties = new Properties();
         final Properties newProperties = new Properties();
-        final Path path = FabricLoader.getInstance().getConfigDir().resolve("vanillamelody").resolve("config.properties");
+        final Path path = GameDirs.configDir().resolve("vanillamelody").resolve("config.properties");
         path.getParent().toFile().mkdirs();
         if (Files.isRegularFile(path)) {
             try (InputStream in = Files.newInputStream(path, StandardOpenOption.CREATE)) {
@@ -39,6 +52,19 @@ public class Config {
         DEFAULT_RADIO_ENABLED = getBoolean(properties, newProperties, "default_radio_enabled", true);
         ENABLE_SERVERSIDE_PLAYBACK = getBoolean(properties, newProperties, "enable_serverside_playback", true);
         ALLOW_NON_OPERATOR_RADIO_CHANGE = getBoolean(properties, newProperties, "allow_non_operator_radio_change", false);
+        LAZY_SONG_LOADING = getBoolean(properties, newProperties, "lazy_song_loading", false);
+        SONG_CACHE_SIZE_MB = getInt(properties, newProperties, "song_cache_size_mb", 256);
+        WATCH_SONG_DIRECTORIES = getBoolean(properties, newProperties, "watch_song_directories", true);
+        COMPRESS_MIDI_TRANSFERS = getBoolean(properties, newProperties, "compress_midi_transfers", true);
+        PREFETCH_UPCOMING_SONGS = getInt(properties, newProperties, "prefetch_upcoming_songs", 2);
+        CLIENT_SONG_CACHE_SIZE_MB = getInt(properties, newProperties, "client_song_cache_size_mb", 64);
+        CLIENT_DISK_CACHE_SIZE_MB = getInt(properties, newProperties, "client_disk_cache_size_mb", 256);
+        CLIENT_SCHEDULER_STATS = getBoolean(properties, newProperties, "client_scheduler_stats", false);
+        CLIENT_MAX_VOICES = getInt(properties, newProperties, "client_max_voices", 64);
+        CLIENT_BATCHED_NOTE_SUBMISSION = getBoolean(properties, newProperties, "client_batched_note_submission", true);
+        CLIENT_SUSTAINED_VOICES = getBoolean(properties, newProperties, "client_sustained_voices", true);
+        CLIENT_OFFLINE_RENDER = getBoolean(properties, newProperties, "client_offline_render", false);
+        CLIENT_PREWARM_SAMPLES = getBoolean(properties, newProperties, "client_prewarm_samples", true);
 
         try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
             newProperties.store(out, "Configuration file");
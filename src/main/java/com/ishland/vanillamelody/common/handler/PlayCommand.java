@@ -2,7 +2,9 @@ package com.ishland.vanillamelody.common.handler;
 
 import com.ishland.vanillamelody.common.Config;
 import com.ishland.vanillamelody.common.playback.ServerSongPlayer;
+import com.ishland.vanillamelody.common.playback.ServerStationManager;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
@@ -13,8 +15,10 @@ import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.LiteralText;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public class PlayCommand {
 
@@ -31,63 +35,130 @@ public class PlayCommand {
                                         .then(
                                                 CommandManager.literal("next")
                                                         .requires(source -> Config.ALLOW_NON_OPERATOR_RADIO_CHANGE || source.hasPermissionLevel(2))
-                                                        .executes(PlayCommand::handleRadioNext)
+                                                        .executes(ctx -> handleRadioNext(ctx, getSourceStation(ctx)))
                                         )
                                         .then(
                                                 CommandManager.literal("setSong")
                                                         .requires(source -> Config.ALLOW_NON_OPERATOR_RADIO_CHANGE || source.hasPermissionLevel(2))
                                                         .then(
                                                                 CommandManager.argument("song", MessageArgumentType.message())
-                                                                        .suggests((context, builder) -> CommandSource.suggestMatching(ServerSongPlayer.playlistSuggestion(), builder))
-                                                                        .executes(PlayCommand::handleRadioSetSong)
+                                                                        .suggests((context, builder) -> CommandSource.suggestMatching(getSourceStation(context).playlistSuggestion(), builder))
+                                                                        .executes(ctx -> handleRadioSetSong(ctx, getSourceStation(ctx)))
                                                         )
                                         )
                                         .then(
                                                 CommandManager.literal("join")
                                                         .requires(source -> source.getEntity() instanceof PlayerEntity)
-                                                        .executes(PlayCommand::handleRadioJoin)
+                                                        .executes(ctx -> handleRadioJoin(ctx, ServerStationManager.getDefault()))
+                                                        .then(
+                                                                CommandManager.argument("station", StringArgumentType.string())
+                                                                        .suggests((context, builder) -> CommandSource.suggestMatching(stationSuggestion(), builder))
+                                                                        .executes(ctx -> handleRadioJoin(ctx, getStationArgument(ctx)))
+                                                        )
                                         )
                                         .then(
                                                 CommandManager.literal("leave")
                                                         .requires(source -> source.getEntity() instanceof PlayerEntity)
                                                         .executes(PlayCommand::handleRadioLeave)
                                         )
+                                        .then(
+                                                CommandManager.literal("list")
+                                                        .executes(PlayCommand::handleRadioList)
+                                        )
+                                        .then(
+                                                CommandManager.literal("station")
+                                                        .requires(source -> Config.ALLOW_NON_OPERATOR_RADIO_CHANGE || source.hasPermissionLevel(2))
+                                                        .then(
+                                                                CommandManager.argument("station", StringArgumentType.string())
+                                                                        .suggests((context, builder) -> CommandSource.suggestMatching(stationSuggestion(), builder))
+                                                                        .then(
+                                                                                CommandManager.literal("next")
+                                                                                        .executes(ctx -> handleRadioNext(ctx, getStationArgument(ctx)))
+                                                                        )
+                                                                        .then(
+                                                                                CommandManager.literal("setSong")
+                                                                                        .then(
+                                                                                                CommandManager.argument("song", MessageArgumentType.message())
+                                                                                                        .suggests((context, builder) -> {
+                                                                                                            final ServerSongPlayer station = ServerStationManager.get(StringArgumentType.getString(context, "station"));
+                                                                                                            return CommandSource.suggestMatching(station != null ? station.playlistSuggestion() : Stream.empty(), builder);
+                                                                                                        })
+                                                                                                        .executes(ctx -> handleRadioSetSong(ctx, getStationArgument(ctx)))
+                                                                                        )
+                                                                        )
+                                                        )
+                                        )
                         );
         dispatcher.register(
                 command
         );
     }
 
-    private static int handleRadioSetSong(CommandContext<ServerCommandSource> ctx) throws CommandSyntaxException {
+    private static Stream<String> stationSuggestion() {
+        return ServerStationManager.getStations().stream().map(ServerSongPlayer::getName).map(StringArgumentType::escapeIfRequired);
+    }
+
+    /**
+     * @return the station the command source is listening to, or the default station
+     */
+    private static ServerSongPlayer getSourceStation(CommandContext<ServerCommandSource> ctx) {
+        if (ctx.getSource().getEntity() instanceof ServerPlayerEntity player) {
+            final ServerSongPlayer station = ServerStationManager.getListening(player);
+            if (station != null) return station;
+        }
+        return ServerStationManager.getDefault();
+    }
+
+    @Nullable
+    private static ServerSongPlayer getStationArgument(CommandContext<ServerCommandSource> ctx) {
+        final String name = StringArgumentType.getString(ctx, "station");
+        final ServerSongPlayer station = ServerStationManager.get(name);
+        if (station == null) {
+            ctx.getSource().sendError(new LiteralText("Unknown station: " + name));
+        }
+        return station;
+    }
+
+    private static int handleRadioSetSong(CommandContext<ServerCommandSource> ctx, @Nullable ServerSongPlayer station) throws CommandSyntaxException {
+        if (station == null) return 0;
         final String song = MessageArgumentType.getMessage(ctx, "song").getString();
-        ServerSongPlayer.EXECUTOR.execute(() -> ServerSongPlayer.INSTANCE.setSong(song));
+        ServerSongPlayer.EXECUTOR.execute(() -> station.setSong(song));
         return 0;
     }
 
-    private static int handleRadioNext(CommandContext<ServerCommandSource> ctx) {
-        ServerSongPlayer.EXECUTOR.execute(ServerSongPlayer.INSTANCE::nextSong);
+    private static int handleRadioNext(CommandContext<ServerCommandSource> ctx, @Nullable ServerSongPlayer station) {
+        if (station == null) return 0;
+        ServerSongPlayer.EXECUTOR.execute(station::nextSong);
         return 0;
     }
 
     private static int handleReload(CommandContext<ServerCommandSource> ctx) {
         CompletableFuture.runAsync(() -> {
                     Config.reload();
-                    ServerSongPlayer.reload();
+                    ServerStationManager.reload();
                 })
                 .thenRunAsync(() -> ctx.getSource().sendFeedback(new LiteralText("Reloaded songs"), true), ctx.getSource().getServer());
         return 0;
     }
 
-    private static int handleRadioJoin(CommandContext<ServerCommandSource> context) throws CommandSyntaxException {
+    private static int handleRadioList(CommandContext<ServerCommandSource> ctx) {
+        for (ServerSongPlayer station : ServerStationManager.getStations()) {
+            ctx.getSource().sendFeedback(new LiteralText("%s: %d songs, %d listeners".formatted(
+                    station.getName(), station.getPlayList().getSongs().size(), station.getListenerCount())), false);
+        }
+        return 0;
+    }
+
+    private static int handleRadioJoin(CommandContext<ServerCommandSource> context, @Nullable ServerSongPlayer station) throws CommandSyntaxException {
+        if (station == null) return 0;
         final ServerPlayerEntity player = context.getSource().getPlayer();
-        ServerSongPlayer.INSTANCE.removePlayer(player);
-        ServerSongPlayer.INSTANCE.addPlayer(player);
+        ServerStationManager.join(player, station);
         return 0;
     }
 
     private static int handleRadioLeave(CommandContext<ServerCommandSource> context) throws CommandSyntaxException {
         final ServerPlayerEntity player = context.getSource().getPlayer();
-        ServerSongPlayer.INSTANCE.removePlayer(player);
+        ServerStationManager.leave(player);
         return 0;
     }
 }
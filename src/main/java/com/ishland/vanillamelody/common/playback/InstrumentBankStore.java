@@ -0,0 +1,29 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoded instrument banks of all stations, keyed by sha256 so clients only download banks they have not seen
+ */
+public class InstrumentBankStore {
+
+    private static final ConcurrentHashMap<String, byte[]> BANKS = new ConcurrentHashMap<>();
+
+    /**
+     * @return sha256 of the encoded bank
+     */
+    public static byte[] register(byte[] encodedBank) {
+        final byte[] sha256 = DigestUtils.sha256(encodedBank);
+        BANKS.putIfAbsent(DigestUtils.bytesToHex(sha256), encodedBank);
+        return sha256;
+    }
+
+    @Nullable
+    public static byte[] get(byte[] sha256) {
+        return BANKS.get(DigestUtils.bytesToHex(sha256));
+    }
+
+}
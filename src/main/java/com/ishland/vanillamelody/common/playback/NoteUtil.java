@@ -1,5 +1,6 @@
 package com.ishland.vanillamelody.common.playback;
 
+import net.minecraft.util.Identifier;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3d;
 
@@ -7,10 +8,62 @@ public class NoteUtil {
 
     private static final float[] pitches = new float[2401];
 
+    private static final int MIN_SUFFIX = -8;
+    private static final int MAX_SUFFIX = 8;
+    private static final Identifier[][] soundIds = new Identifier[16][MAX_SUFFIX - MIN_SUFFIX + 1];
+
+    // octave suffix and both pitches for every key and cent, indexed by absolute cents (key * 100 + pitch)
+    // the mapping does not depend on the instrument, which only selects the sound id row
+    private static final int TABLE_MIN_KEY = -128;
+    private static final int TABLE_MAX_KEY = 255;
+    private static final int TABLE_OFFSET = -TABLE_MIN_KEY * 100;
+    private static final int TABLE_SIZE = (TABLE_MAX_KEY - TABLE_MIN_KEY + 1) * 100;
+    private static final byte[] suffixTable = new byte[TABLE_SIZE];
+    private static final float[] pitchInOctaveTable = new float[TABLE_SIZE];
+    private static final float[] pitchOnBaseOctaveTable = new float[TABLE_SIZE];
+
     static {
         for (int i = 0; i < 2401; i++){
             pitches[i] = (float) Math.pow(2, (i - 1200d) / 1200d);
         }
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            final short key = (short) Math.floorDiv(i - TABLE_OFFSET, 100);
+            final short pitch = (short) Math.floorMod(i - TABLE_OFFSET, 100);
+            suffixTable[i] = (byte) computeOctaveSuffix(key, pitch);
+            pitchInOctaveTable[i] = computePitchInOctave(key, pitch);
+            pitchOnBaseOctaveTable[i] = computePitchOnBaseOctave(key, pitch);
+        }
+        for (int instrument = 0; instrument < soundIds.length; instrument++) {
+            final String name = getSoundNameByInstrument((byte) instrument);
+            for (int suffix = MIN_SUFFIX; suffix <= MAX_SUFFIX; suffix++) {
+                soundIds[instrument][suffix - MIN_SUFFIX] = new Identifier(appendSuffix(name, suffix));
+            }
+        }
+    }
+
+    /**
+     * Returns the pre-interned sound id for a note, same as {@link #warpNameOutOfRange(byte, short, short)}
+     *
+     * @param instrument vanilla instrument ordinal
+     * @param key sound key
+     * @param pitch extra pitch
+     * @return warped sound id
+     */
+    public static Identifier getSoundId(byte instrument, short key, short pitch) {
+        final int suffix = getOctaveSuffix(key, pitch);
+        if (instrument < 0 || instrument >= soundIds.length) instrument = 0;
+        if (suffix < MIN_SUFFIX || suffix > MAX_SUFFIX) {
+            return new Identifier(appendSuffix(getSoundNameByInstrument(instrument), suffix));
+        }
+        return soundIds[instrument][suffix - MIN_SUFFIX];
+    }
+
+    /**
+     * Returns the pre-interned sound id of the base octave of a vanilla instrument
+     */
+    public static Identifier getBaseSoundId(byte instrument) {
+        if (instrument < 0 || instrument >= soundIds.length) instrument = 0;
+        return soundIds[instrument][-MIN_SUFFIX];
     }
 
     /**
@@ -33,6 +86,32 @@ public class NoteUtil {
      * @return warped name
      */
     public static String warpNameOutOfRange(String name, short key, short pitch) {
+        return appendSuffix(name, getOctaveSuffix(key, pitch));
+    }
+
+    /**
+     * Returns the number of 2 octave ranges the key is away from the base range
+     *
+     * @param key sound key
+     * @param pitch extra pitch
+     * @return octave suffix, 0 for the base range
+     */
+    public static int getOctaveSuffix(short key, short pitch) {
+        final int index = tableIndex(key, pitch);
+        if (index >= 0) return suffixTable[index];
+        return computeOctaveSuffix(key, pitch);
+    }
+
+    /**
+     * @return index into the lookup tables, or -1 if out of range
+     */
+    private static int tableIndex(short key, short pitch) {
+        final int index = key * 100 + pitch + TABLE_OFFSET;
+        return index >= 0 && index < TABLE_SIZE ? index : -1;
+    }
+
+    // uncached computations behind the lookup tables, package-private for the benchmarks
+    static int computeOctaveSuffix(short key, short pitch) {
         key = applyPitchToKey(key, pitch);
         // -15 base_-2
         // 9 base_-1
@@ -49,6 +128,10 @@ public class NoteUtil {
             suffix += 1;
             key -= 24;
         }
+        return suffix;
+    }
+
+    private static String appendSuffix(String name, int suffix) {
         return name + (suffix != 0 ? "_" + suffix : "");
     }
 
@@ -109,6 +192,12 @@ public class NoteUtil {
      * @return pitch
      */
     public static float getPitchInOctave(short key, short pitch) {
+        final int index = tableIndex(key, pitch);
+        if (index >= 0) return pitchInOctaveTable[index];
+        return computePitchInOctave(key, pitch);
+    }
+
+    static float computePitchInOctave(short key, short pitch) {
         // Apply pitch to key
         key = applyPitchToKey(key, pitch);
         pitch %= 100;
@@ -129,6 +218,12 @@ public class NoteUtil {
     }
 
     public static float getPitchOnBaseOctave(short key, short pitch) {
+        final int index = tableIndex(key, pitch);
+        if (index >= 0) return pitchOnBaseOctaveTable[index];
+        return computePitchOnBaseOctave(key, pitch);
+    }
+
+    static float computePitchOnBaseOctave(short key, short pitch) {
         // Apply pitch to key
         key = applyPitchToKey(key, pitch);
         pitch %= 100;
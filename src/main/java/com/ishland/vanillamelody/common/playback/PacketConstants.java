@@ -6,34 +6,81 @@ public class PacketConstants {
 
     public static final String NAMESPACE = "vanillamelody";
 
-    // hello packets have empty contents
+    public static final int PROTOCOL_VERSION = 5;
+
+    // hello packets
+    // VarInt: protocol version, empty before version 1
+    // VarInt: bit mask of supported PayloadCodec ids
     public static final Identifier SERVER_HELLO = new Identifier(NAMESPACE, "server_hello0");
     public static final Identifier CLIENT_HELLO = new Identifier(NAMESPACE, "client_hello0");
 
-    // client midi request content: 32 bytes sha256 of the midi file
-    public static final Identifier CLIENT_MIDI_FILE_REQUEST = new Identifier(NAMESPACE, "client_midi_file_request");
-    // server midi response content:
-    // byte: 0x00 if the midi file is not found, 0x01 if the midi file is found
+    // client midi request
+    // VarInt: file count
+    // for each file:
+    //   32 bytes sha256 of the midi file
+    //   VarInt: offset to start from, non-zero when resuming a transfer
+    //   boolean: whether this is a prefetch, prefetches only use bandwidth left over by other transfers
+    // found files are answered with interleaved chunks, see SERVER_MIDI_FILE_CHUNK
+    public static final Identifier CLIENT_MIDI_FILE_REQUEST = new Identifier(NAMESPACE, "client_midi_file_request_1");
+    // server midi response, lists the requested midi files that are not found
+    // VarInt: file count
+    // for each file: 32 bytes sha256 of the midi file
+    public static final Identifier SERVER_MIDI_FILE_RESPONSE = new Identifier(NAMESPACE, "server_midi_file_response_1");
+    // server midi file chunk
+    // 32 bytes sha256 of the midi file
+    // VarInt: PayloadCodec id of the payload
+    // VarInt: length of the midi file in bytes
+    // VarInt: length of the encoded payload in bytes
+    // VarInt: offset of this chunk in the payload
+    // the remaining bytes are the chunk content
+    public static final Identifier SERVER_MIDI_FILE_CHUNK = new Identifier(NAMESPACE, "server_midi_file_chunk");
+    // client midi file chunk acknowledgement
     // 32 bytes sha256 of the midi file
-    // VarInt: if the midi file is found, the length of the midi file in bytes
-    // if the midi file is found, the following bytes are the midi file content
-    public static final Identifier SERVER_MIDI_FILE_RESPONSE = new Identifier(NAMESPACE, "server_midi_file_response");
+    // VarInt: number of payload bytes received in order
+    public static final Identifier CLIENT_MIDI_FILE_ACK = new Identifier(NAMESPACE, "client_midi_file_ack");
 
     // playback init
     // int32: sync id
-    // int16: instrument count
-    // for each instrument: int16 key + see MidiInstruments$MidiInstrument
-    // int16: percussion count
-    // for each percussion: int16 key + see MidiInstruments$MidiPercussion
-    public static final Identifier SERVER_PLAYBACK_INIT = new Identifier(NAMESPACE, "server_playback_init_0");
+    // 32 bytes sha256 of the encoded instrument bank, see MidiInstruments#encodeBank
+    public static final Identifier SERVER_PLAYBACK_INIT = new Identifier(NAMESPACE, "server_playback_init_1");
+
+    // client instrument bank request, sent if the bank is not cached
+    // 32 bytes sha256 of the encoded instrument bank
+    public static final Identifier CLIENT_BANK_REQUEST = new Identifier(NAMESPACE, "client_bank_request");
+    // server instrument bank response
+    // 32 bytes sha256 of the encoded instrument bank
+    // the remaining bytes are the encoded instrument bank, empty if the bank is not found
+    public static final Identifier SERVER_BANK_RESPONSE = new Identifier(NAMESPACE, "server_bank_response");
 
     // sequence change
     // int32: sync id
     // 32 bytes sha256 of the midi file
     // int64: tick position
     // int64: microseconds position
+    // VarInt: song serial, increases with every song change of the station
     public static final Identifier SERVER_PLAYBACK_SEQUENCE_CHANGE = new Identifier(NAMESPACE, "server_playback_sequence_change");
 
+    // upcoming songs, sent on song change so clients can prefetch them
+    // int32: sync id
+    // VarInt: song count
+    // for each song: 32 bytes sha256 of the midi file
+    public static final Identifier SERVER_PLAYBACK_UPCOMING = new Identifier(NAMESPACE, "server_playback_upcoming");
+
+    // periodic playback clock, lets clients correct drift
+    // int32: sync id
+    // VarInt: song serial
+    // VarLong: server monotonic time in microseconds
+    // VarLong: microseconds position at that time
+    public static final Identifier SERVER_PLAYBACK_CLOCK = new Identifier(NAMESPACE, "server_playback_clock");
+
+    // clock ping
+    // VarLong: client monotonic time in microseconds
+    public static final Identifier CLIENT_CLOCK_PING = new Identifier(NAMESPACE, "client_clock_ping");
+    // clock pong, sent as soon as the ping is received
+    // VarLong: client time from the ping
+    // VarLong: server monotonic time in microseconds
+    public static final Identifier SERVER_CLOCK_PONG = new Identifier(NAMESPACE, "server_clock_pong");
+
     // playback stop
     // int32: sync id
     public static final Identifier SERVER_PLAYBACK_STOP = new Identifier(NAMESPACE, "server_playback_stop");
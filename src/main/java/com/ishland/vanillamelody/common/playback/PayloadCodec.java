@@ -0,0 +1,71 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Encodings of transferred midi files, negotiated in the hello handshake
+ */
+public enum PayloadCodec {
+
+    RAW(0),
+    DEFLATE(1);
+
+    private static final PayloadCodec[] VALUES = values();
+
+    private final int id;
+
+    PayloadCodec(int id) {
+        this.id = id;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int bit() {
+        return 1 << id;
+    }
+
+    public static PayloadCodec byId(int id) {
+        return id >= 0 && id < VALUES.length ? VALUES[id] : null;
+    }
+
+    /**
+     * @return the codecs this side is able to use
+     */
+    public static int supportedMask() {
+        return Config.COMPRESS_MIDI_TRANSFERS ? RAW.bit() | DEFLATE.bit() : RAW.bit();
+    }
+
+    /**
+     * @return the best codec both sides support
+     */
+    public static PayloadCodec negotiate(int remoteMask) {
+        final int mask = supportedMask() & remoteMask;
+        for (int i = VALUES.length - 1; i > 0; i--) {
+            if ((mask & VALUES[i].bit()) != 0) return VALUES[i];
+        }
+        return RAW;
+    }
+
+    static byte[] deflate(byte[] bytes) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                final int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
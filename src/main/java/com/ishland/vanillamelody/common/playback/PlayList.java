@@ -1,39 +1,128 @@
 package com.ishland.vanillamelody.common.playback;
 
+import com.ishland.vanillamelody.common.Config;
+import com.ishland.vanillamelody.common.playback.sequencer.PackedSequence;
+import com.ishland.vanillamelody.common.playback.sequencer.StandardMidiFileParser;
 import com.ishland.vanillamelody.common.util.DigestUtils;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import net.minecraft.SharedConstants;
+import org.jetbrains.annotations.Nullable;
 
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MidiFileFormat;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.Sequence;
-import java.io.ByteArrayInputStream;
+import javax.sound.midi.MetaMessage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.LinkedList;
-import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 public class PlayList {
 
     private final ReferenceArrayList<SongInfo> songs;
+    private final SongIndex index;
+    private final Object2IntOpenHashMap<String> positions;
 
-    private PlayList(ReferenceArrayList<SongInfo> songs) {
+    private PlayList(ReferenceArrayList<SongInfo> songs, SongIndex index) {
         this.songs = songs;
+        this.index = index;
+        this.positions = new Object2IntOpenHashMap<>(songs.size());
+        this.positions.defaultReturnValue(-1);
+        for (int i = 0, size = songs.size(); i < size; i++) {
+            this.positions.put(songs.get(i).relativeFilePath(), i);
+        }
     }
 
     public ReferenceArrayList<SongInfo> getSongs() {
         return songs;
     }
 
-    public static PlayList scan(File directory) {
-        LinkedList<File> pendingScans = new LinkedList<>();
-        ReferenceArrayList<SongInfo> songs = new ReferenceArrayList<>();
+    /**
+     * @return position of the song with the given relative path, or -1 if absent
+     */
+    public int indexOf(String relativeFilePath) {
+        return positions.getInt(relativeFilePath);
+    }
 
-        directory.mkdirs();
+    /**
+     * Applies changes of individual files or directories, only the changed files are read
+     * <p>
+     * Changed songs keep their position, new songs are appended to the end.
+     *
+     * @param directory songs directory
+     * @param changedFiles created, modified or deleted files and directories
+     * @return updated playlist
+     */
+    public PlayList update(File directory, Collection<File> changedFiles) {
+        final ReferenceArrayList<File> toScan = new ReferenceArrayList<>();
+        final ObjectOpenHashSet<String> removed = new ObjectOpenHashSet<>();
+        final SongIndex index = this.index.copy();
+        for (File file : changedFiles.stream().sorted().toList()) {
+            final String relativeFilePath = directory.toPath().relativize(file.toPath()).toString();
+            if (file.isDirectory()) {
+                collectMidiFiles(file, toScan);
+            } else if (!file.exists()) {
+                if (positions.containsKey(relativeFilePath)) {
+                    removed.add(relativeFilePath);
+                } else {
+                    // a deleted directory takes all songs below it
+                    final String prefix = relativeFilePath + File.separator;
+                    for (SongInfo song : songs) {
+                        if (song.relativeFilePath().startsWith(prefix)) removed.add(song.relativeFilePath());
+                    }
+                }
+            } else if (file.getName().endsWith(".mid")) {
+                toScan.add(file);
+            }
+        }
+        // a new directory is reported together with the files inside it
+        final ObjectOpenHashSet<String> queued = new ObjectOpenHashSet<>(toScan.size());
+        toScan.removeIf(file -> !queued.add(directory.toPath().relativize(file.toPath()).toString()));
+
+        final ScannedSong[] scanned = toScan.parallelStream()
+                .map(file -> scanFile(directory, file, this.index, this::getSong))
+                .toArray(ScannedSong[]::new);
+
+        final ReferenceArrayList<SongInfo> songs = new ReferenceArrayList<>(this.songs);
+        for (int i = 0; i < scanned.length; i++) {
+            final String relativeFilePath = directory.toPath().relativize(toScan.get(i).toPath()).toString();
+            final ScannedSong song = scanned[i];
+            final int position = positions.getInt(relativeFilePath);
+            if (song == null) {
+                removed.add(relativeFilePath);
+            } else if (position >= 0) {
+                songs.set(position, song.info);
+                index.put(song.entry);
+            } else {
+                songs.add(song.info);
+                index.put(song.entry);
+            }
+        }
+        if (!removed.isEmpty()) {
+            songs.removeIf(song -> removed.contains(song.relativeFilePath()));
+            for (String relativeFilePath : removed) {
+                index.remove(relativeFilePath);
+            }
+        }
+        index.save(directory);
+        return new PlayList(songs, index);
+    }
+
+    @Nullable
+    private SongInfo getSong(String relativeFilePath) {
+        final int position = positions.getInt(relativeFilePath);
+        return position >= 0 ? songs.get(position) : null;
+    }
+
+    private static void collectMidiFiles(File directory, ReferenceArrayList<File> midiFiles) {
+        LinkedList<File> pendingScans = new LinkedList<>();
         pendingScans.add(directory);
         File dir;
         while ((dir = pendingScans.poll()) != null) {
@@ -45,33 +134,266 @@ public class PlayList {
                 if (file.isDirectory()) {
                     pendingScans.add(file);
                 } else if (file.getName().endsWith(".mid")) {
-                    try {
-                        byte[] fileContent;
-                        try (final var input = new FileInputStream(file)) {
-                            fileContent = input.readAllBytes();
-                        }
-                        songs.add(new SongInfo(
-                                fileContent,
-                                directory.toPath().relativize(file.toPath()).toString()
-                        ));
-                    } catch (InvalidMidiDataException | IOException e) {
-                        System.out.println("Failed to load midi file: " + file.getName());
-                        e.printStackTrace();
-                    }
+                    midiFiles.add(file);
                 }
             }
         }
-        return new PlayList(songs);
     }
 
+    public static PlayList scan(File directory) {
+        return scan(directory, null);
+    }
+
+    /**
+     * Scans the directory for midi files, files are loaded in parallel
+     * <p>
+     * Songs whose size and modification time did not change are taken over from the previous playlist,
+     * the persisted song index saves hashing unchanged files on the first scan.
+     *
+     * @param directory songs directory
+     * @param previous previous playlist of the same directory, if any
+     * @return new playlist
+     */
+    public static PlayList scan(File directory, @Nullable PlayList previous) {
+        ReferenceArrayList<File> midiFiles = new ReferenceArrayList<>();
+
+        directory.mkdirs();
+        collectMidiFiles(directory, midiFiles);
+
+        final SongIndex oldIndex = previous != null ? previous.index : SongIndex.load(directory);
+        final Function<String, SongInfo> previousSongs = previous != null ? previous::getSong : path -> null;
+
+        // parallel streams run on the common fork-join pool and keep encounter order
+        final ScannedSong[] scanned = midiFiles.parallelStream()
+                .map(file -> scanFile(directory, file, oldIndex, previousSongs))
+                .toArray(ScannedSong[]::new);
+
+        final ReferenceArrayList<SongInfo> songs = new ReferenceArrayList<>(scanned.length);
+        final SongIndex index = new SongIndex();
+        int reused = 0;
+        for (ScannedSong song : scanned) {
+            if (song == null) continue;
+            songs.add(song.info);
+            index.put(song.entry);
+            if (song.reused) reused++;
+        }
+        index.save(directory);
+        if (previous != null) {
+            System.out.println("Reused %d of %d songs in %s".formatted(reused, songs.size(), directory));
+        }
+        return new PlayList(songs, index);
+    }
+
+    @Nullable
+    private static ScannedSong scanFile(File directory, File file, SongIndex oldIndex, Function<String, SongInfo> previousSongs) {
+        final String relativeFilePath = directory.toPath().relativize(file.toPath()).toString();
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        final SongIndex.Entry indexed = oldIndex.get(relativeFilePath);
+        final boolean unchanged = indexed != null && indexed.matches(size, lastModified);
+
+        final boolean lazy = Config.LAZY_SONG_LOADING;
+        final SongInfo previousSong = previousSongs.apply(relativeFilePath);
+        if (unchanged && previousSong != null && previousSong.isLazy() == lazy) {
+            return new ScannedSong(previousSong, indexed, true);
+        }
+        if (unchanged) {
+            // same content is already known, possibly from another file or station
+            final SongInfo stored = SongStore.get(indexed.sha256());
+            if (stored != null && stored.isLazy() == lazy) {
+                return new ScannedSong(stored.withPath(file, relativeFilePath), indexed, false);
+            }
+        }
+        if (unchanged && lazy) {
+            return new ScannedSong(new SongInfo(file, indexed), indexed, false);
+        }
+
+        try {
+            byte[] fileContent;
+            try (final var input = new FileInputStream(file)) {
+                fileContent = input.readAllBytes();
+            }
+            final byte[] sha256 = unchanged ? indexed.sha256() : DigestUtils.sha256(fileContent);
+            final SongInfo stored = SongStore.get(sha256);
+            final SongInfo song = stored != null && !stored.isLazy()
+                    ? stored.withPath(file, relativeFilePath)
+                    : new SongInfo(fileContent, relativeFilePath, sha256);
+            final SongIndex.Entry entry = new SongIndex.Entry(relativeFilePath, size, lastModified, song.sha256(), song.title(), song.microsecondLength());
+            return new ScannedSong(lazy ? new SongInfo(file, entry) : song, entry, false);
+        } catch (InvalidMidiDataException | IOException e) {
+            System.out.println("Failed to load midi file: " + file.getName());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private record ScannedSong(SongInfo info, SongIndex.Entry entry, boolean reused) {
+    }
+
+    @Nullable
+    private static String findTitle(PackedSequence sequence) {
+        // the name of the first track is commonly used as the song title
+        int extendedIndex = 0;
+        for (int i = 0, size = sequence.size(); i < size; i++) {
+            final long event = sequence.event(i);
+            if (PackedSequence.tick(event) > 0) break;
+            if (!PackedSequence.isExtended(event)) continue;
+            if (sequence.extendedMessage(extendedIndex++) instanceof MetaMessage metaMessage && metaMessage.getType() == 0x03) {
+                final String title = new String(metaMessage.getData(), StandardCharsets.ISO_8859_1).trim();
+                return title.isEmpty() ? null : title;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A song of a playlist
+     * <p>
+     * Songs either keep their contents resident, or only hold metadata and load their contents
+     * through {@link SongCache} when needed.
+     */
+    public static final class SongInfo {
+
+        private final String relativeFilePath;
+        private final String pathWithoutInvalidChars;
+        private final byte[] sha256;
+        @Nullable
+        private final String title;
+        private final long microsecondLength;
+
+        @Nullable
+        private final SongCache.SongData data;
+        @Nullable
+        private final File file;
+
+        public SongInfo(byte[] sequenceBytes, String relativeFilePath) throws InvalidMidiDataException {
+            this(sequenceBytes, relativeFilePath, DigestUtils.sha256(sequenceBytes));
+        }
+
+        public SongInfo(byte[] sequenceBytes, String relativeFilePath, byte[] sha256) throws InvalidMidiDataException {
+            final PackedSequence sequence = StandardMidiFileParser.parse(sequenceBytes);
+            this.relativeFilePath = relativeFilePath;
+            this.pathWithoutInvalidChars = SharedConstants.stripInvalidChars(relativeFilePath);
+            this.sha256 = sha256;
+            this.title = findTitle(sequence);
+            this.microsecondLength = sequence.getMicrosecondLength();
+            this.data = new SongCache.SongData(sequenceBytes, sequence);
+            this.file = null;
+        }
+
+        private SongInfo(SongInfo content, @Nullable File file, String relativeFilePath) {
+            this.relativeFilePath = relativeFilePath;
+            this.pathWithoutInvalidChars = SharedConstants.stripInvalidChars(relativeFilePath);
+            this.sha256 = content.sha256;
+            this.title = content.title;
+            this.microsecondLength = content.microsecondLength;
+            this.data = content.data;
+            this.file = content.data == null ? file : null;
+        }
+
+        private SongInfo(File file, SongIndex.Entry entry) {
+            this.relativeFilePath = entry.relativeFilePath();
+            this.pathWithoutInvalidChars = SharedConstants.stripInvalidChars(entry.relativeFilePath());
+            this.sha256 = entry.sha256();
+            this.title = entry.title();
+            this.microsecondLength = entry.microsecondLength();
+            this.data = null;
+            this.file = file;
+        }
+
+        public String relativeFilePath() {
+            return relativeFilePath;
+        }
+
+        public String pathWithoutInvalidChars() {
+            return pathWithoutInvalidChars;
+        }
+
+        public byte[] sha256() {
+            return sha256;
+        }
 
-    public record SongInfo(byte[] sequenceBytes, Sequence sequence, MidiFileFormat fileFormat, String relativeFilePath, String pathWithoutInvalidChars, byte[] sha256) {
+        @Nullable
+        public String title() {
+            return title;
+        }
+
+        public long microsecondLength() {
+            return microsecondLength;
+        }
+
+        public String displayName() {
+            return title != null ? title : relativeFilePath;
+        }
+
+        /**
+         * @return a song at another path sharing the contents of this one
+         */
+        SongInfo withPath(File file, String relativeFilePath) {
+            return new SongInfo(this, file, relativeFilePath);
+        }
+
+        /**
+         * @return rough estimate of the retained heap, zero for lazy songs
+         */
+        public int weight() {
+            return data != null ? data.weight() : 0;
+        }
+
+        public boolean isLazy() {
+            return data == null;
+        }
+
+        /**
+         * @throws UncheckedIOException if the contents of a lazy song cannot be loaded
+         */
+        public byte[] sequenceBytes() {
+            return data().sequenceBytes();
+        }
+
+        /**
+         * @throws UncheckedIOException if the contents of a lazy song cannot be loaded
+         */
+        public PackedSequence sequence() {
+            return data().sequence();
+        }
+
+        /**
+         * @return the contents encoded for transfer, the deflated form is computed once and kept with the contents
+         * @throws UncheckedIOException if the contents of a lazy song cannot be loaded
+         */
+        byte[] encodedBytes(PayloadCodec codec) {
+            final SongCache.SongData data = data();
+            if (codec != PayloadCodec.DEFLATE) return data.sequenceBytes();
+            byte[] deflated = data.deflated;
+            if (deflated == null) {
+                final long startTime = System.nanoTime();
+                deflated = PayloadCodec.deflate(data.sequenceBytes());
+                data.deflated = deflated;
+                System.out.println("Deflated %s: %d -> %d bytes (%.1f%%) in %.2fms".formatted(
+                        relativeFilePath, data.sequenceBytes().length, deflated.length,
+                        deflated.length * 100.0 / data.sequenceBytes().length, (System.nanoTime() - startTime) / 1_000_000.0));
+            }
+            return deflated;
+        }
+
+        private SongCache.SongData data() {
+            if (this.data != null) return this.data;
+            try {
+                return SongCache.get(this.file, this.sha256);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
-        public SongInfo(byte[] sequenceBytes, String relativeFilePath) throws InvalidMidiDataException, IOException {
-            this(sequenceBytes, Objects.requireNonNull(MidiSystem.getSequence(new ByteArrayInputStream(sequenceBytes))),
-                    Objects.requireNonNull(MidiSystem.getMidiFileFormat(new ByteArrayInputStream(sequenceBytes))),
-                    relativeFilePath, SharedConstants.stripInvalidChars(relativeFilePath),
-                    DigestUtils.sha256(sequenceBytes));
+        /**
+         * Starts loading the contents of a lazy song in the background
+         *
+         * @return the parsed sequence, completed exceptionally if the contents cannot be loaded
+         */
+        public CompletableFuture<PackedSequence> preload() {
+            if (this.data != null) return CompletableFuture.completedFuture(this.data.sequence());
+            return SongCache.preload(this.file, this.sha256).thenApply(SongCache.SongData::sequence);
         }
 
     }
@@ -0,0 +1,139 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches the songs directories of stations and applies file changes to their playlists
+ * <p>
+ * Changes are collected until the directory has been quiet for a short while, so that files
+ * still being copied are only read once.
+ */
+public class PlayListWatcher {
+
+    private static final long QUIET_PERIOD_MILLIS = 1000L;
+
+    private static final Object lock = new Object();
+    private static WatchService watchService = null;
+    private static final Map<WatchKey, WatchedDirectory> keys = new Object2ObjectOpenHashMap<>();
+    private static final Reference2ObjectOpenHashMap<ServerSongPlayer, ObjectOpenHashSet<File>> pendingChanges = new Reference2ObjectOpenHashMap<>();
+    private static final ReferenceOpenHashSet<ServerSongPlayer> pendingRescans = new ReferenceOpenHashSet<>();
+
+    private record WatchedDirectory(ServerSongPlayer station, Path path) {
+    }
+
+    public static void watch(ServerSongPlayer station, File directory) {
+        synchronized (lock) {
+            try {
+                if (watchService == null) {
+                    watchService = FileSystems.getDefault().newWatchService();
+                    new ThreadFactoryBuilder().setNameFormat("VanillaMelody Playlist Watcher").setDaemon(true).build()
+                            .newThread(PlayListWatcher::run)
+                            .start();
+                }
+                registerTree(station, directory.toPath());
+            } catch (IOException e) {
+                System.out.println("Failed to watch songs directory " + directory);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void registerTree(ServerSongPlayer station, Path root) throws IOException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            for (Path dir : (Iterable<Path>) stream.filter(Files::isDirectory)::iterator) {
+                final WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, new WatchedDirectory(station, dir));
+            }
+        }
+    }
+
+    private static void run() {
+        try {
+            while (true) {
+                final boolean hasPending;
+                synchronized (lock) {
+                    hasPending = !pendingChanges.isEmpty() || !pendingRescans.isEmpty();
+                }
+                final WatchKey key = hasPending
+                        ? watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)
+                        : watchService.take();
+                if (key == null) {
+                    flush();
+                    continue;
+                }
+                synchronized (lock) {
+                    final WatchedDirectory watched = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (watched == null) continue;
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            pendingRescans.add(watched.station);
+                            continue;
+                        }
+                        final Path path = watched.path.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                            try {
+                                registerTree(watched.station, path);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                        pendingChanges.computeIfAbsent(watched.station, unused -> new ObjectOpenHashSet<>()).add(path.toFile());
+                    }
+                    if (!key.reset()) {
+                        keys.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private static void flush() {
+        final Reference2ObjectOpenHashMap<ServerSongPlayer, ObjectOpenHashSet<File>> changes;
+        final ReferenceOpenHashSet<ServerSongPlayer> rescans;
+        synchronized (lock) {
+            changes = new Reference2ObjectOpenHashMap<>(pendingChanges);
+            rescans = new ReferenceOpenHashSet<>(pendingRescans);
+            pendingChanges.clear();
+            pendingRescans.clear();
+        }
+        for (ServerSongPlayer station : rescans) {
+            try {
+                station.reload();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        for (Map.Entry<ServerSongPlayer, ObjectOpenHashSet<File>> entry : changes.entrySet()) {
+            if (rescans.contains(entry.getKey())) continue;
+            try {
+                entry.getKey().applyFileChanges(entry.getValue());
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import net.fabricmc.fabric.api.networking.v1.PacketSender;
+import net.minecraft.network.PacketByteBuf;
+
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chunked midi file transfers to clients
+ * <p>
+ * Every connection has a window of unacknowledged bytes and its transfers take turns sending chunks,
+ * so a large file never holds up the rest of the connection's traffic. Prefetches only send when no
+ * requested transfer has chunks left to send.
+ */
+class ServerFileTransferManager {
+
+    static final int CHUNK_SIZE = 16 * 1024;
+    static final int WINDOW_SIZE = 4 * CHUNK_SIZE;
+
+    private static final int HEADER_SIZE = DigestUtils.SHA256_BYTES + 5 + 5 + 5 + 5;
+
+    private static final ConcurrentHashMap<UUID, Connection> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private static final class Transfer {
+
+        private final byte[] sha256;
+        private final PayloadCodec codec;
+        private final int originalLength;
+        // read-only view of the stored encoded song, chunks are slices of it
+        private final ByteBuf content;
+        private final int length;
+        private final boolean prefetch;
+        private int sentOffset;
+        private int ackedOffset;
+
+        private Transfer(byte[] sha256, PayloadCodec codec, int originalLength, byte[] payload, int offset, boolean prefetch) {
+            this.sha256 = sha256;
+            this.codec = codec;
+            this.originalLength = originalLength;
+            this.content = Unpooled.wrappedBuffer(payload).asReadOnly();
+            this.length = payload.length;
+            this.prefetch = prefetch;
+            this.sentOffset = offset;
+            this.ackedOffset = offset;
+        }
+    }
+
+    private static final class Connection {
+
+        private final PacketSender sender;
+        private final ReferenceArrayList<Transfer> transfers = new ReferenceArrayList<>();
+        private int nextTransfer = 0;
+
+        private Connection(PacketSender sender) {
+            this.sender = sender;
+        }
+
+        private Transfer find(byte[] sha256) {
+            for (Transfer transfer : transfers) {
+                if (Arrays.equals(transfer.sha256, sha256)) return transfer;
+            }
+            return null;
+        }
+
+        private int inFlight() {
+            int inFlight = 0;
+            for (Transfer transfer : transfers) {
+                inFlight += transfer.sentOffset - transfer.ackedOffset;
+            }
+            return inFlight;
+        }
+
+        /**
+         * Sends chunks round-robin across transfers until the window is full
+         */
+        private void pump() {
+            int inFlight = inFlight();
+            boolean prefetch = false;
+            int idle = 0;
+            while (inFlight < WINDOW_SIZE && idle < transfers.size()) {
+                if (nextTransfer >= transfers.size()) nextTransfer = 0;
+                final Transfer transfer = transfers.get(nextTransfer++);
+                final int chunkLength = Math.min(CHUNK_SIZE, transfer.length - transfer.sentOffset);
+                if (chunkLength <= 0 || transfer.prefetch != prefetch) {
+                    if (++idle == transfers.size() && !prefetch) {
+                        // requested transfers are done sending, fill the window with prefetches
+                        prefetch = true;
+                        idle = 0;
+                    }
+                    continue;
+                }
+                idle = 0;
+                sendChunk(transfer, chunkLength);
+                inFlight += chunkLength;
+            }
+        }
+
+        private void sendChunk(Transfer transfer, int chunkLength) {
+            final PacketByteBuf header = new PacketByteBuf(Unpooled.buffer(HEADER_SIZE));
+            header.writeBytes(transfer.sha256);
+            header.writeVarInt(transfer.codec.id());
+            header.writeVarInt(transfer.originalLength);
+            header.writeVarInt(transfer.length);
+            header.writeVarInt(transfer.sentOffset);
+            final ByteBuf chunk = transfer.content.retainedSlice(transfer.sentOffset, chunkLength);
+            transfer.sentOffset += chunkLength;
+            sender.sendPacket(PacketConstants.SERVER_MIDI_FILE_CHUNK, new PacketByteBuf(Unpooled.wrappedBuffer(header, chunk)));
+        }
+    }
+
+    record FileRequest(byte[] sha256, int offset, boolean prefetch) {
+    }
+
+    /**
+     * Opens the connection of a player that completed the handshake, replacing the one of a previous login
+     */
+    static void connect(UUID player, PacketSender sender) {
+        CONNECTIONS.put(player, new Connection(sender));
+    }
+
+    /**
+     * Starts transfers for all found files and answers the missing ones in a single response
+     */
+    static void request(UUID player, PacketSender sender, FileRequest[] requests, PayloadCodec codec) {
+        // requests run late on the scheduler, the player may have left or reconnected since
+        final Connection connection = CONNECTIONS.get(player);
+        if (connection == null || connection.sender != sender) return;
+
+        final byte[][] hashes = new byte[requests.length][];
+        for (int i = 0; i < requests.length; i++) {
+            hashes[i] = requests[i].sha256();
+        }
+        final PlayList.SongInfo[] songs = SongStore.getAll(hashes);
+
+        final ReferenceArrayList<byte[]> missing = new ReferenceArrayList<>();
+        for (int i = 0; i < requests.length; i++) {
+            final FileRequest request = requests[i];
+            final PlayList.SongInfo song = songs[i];
+            if (song == null) {
+                missing.add(request.sha256());
+                continue;
+            }
+
+            final byte[] sequenceBytes;
+            PayloadCodec songCodec = codec;
+            byte[] payload;
+            try {
+                sequenceBytes = song.sequenceBytes();
+                payload = song.encodedBytes(songCodec);
+            } catch (UncheckedIOException e) {
+                e.printStackTrace();
+                missing.add(request.sha256());
+                continue;
+            }
+            if (payload.length >= sequenceBytes.length) {
+                // not worth decoding
+                songCodec = PayloadCodec.RAW;
+                payload = sequenceBytes;
+            }
+
+            synchronized (connection) {
+                final Transfer existing = connection.find(request.sha256());
+                if (existing != null) connection.transfers.remove(existing);
+                // an offset past the end belongs to a different payload of the same song, the client restarts it
+                final int start = request.offset() > 0 && request.offset() < payload.length ? request.offset() : 0;
+                connection.transfers.add(new Transfer(request.sha256(), songCodec, sequenceBytes.length, payload, start, request.prefetch()));
+            }
+        }
+        synchronized (connection) {
+            connection.pump();
+        }
+
+        if (!missing.isEmpty()) {
+            final PacketByteBuf responseBuf = new PacketByteBuf(Unpooled.buffer(5 + missing.size() * DigestUtils.SHA256_BYTES));
+            responseBuf.writeVarInt(missing.size());
+            for (byte[] sha256 : missing) {
+                responseBuf.writeBytes(sha256);
+            }
+            sender.sendPacket(PacketConstants.SERVER_MIDI_FILE_RESPONSE, responseBuf);
+        }
+    }
+
+    static void acknowledge(UUID player, byte[] sha256, int offset) {
+        final Connection connection = CONNECTIONS.get(player);
+        if (connection == null) return;
+        synchronized (connection) {
+            final Transfer transfer = connection.find(sha256);
+            if (transfer == null) return;
+            transfer.ackedOffset = Math.max(transfer.ackedOffset, Math.min(offset, transfer.sentOffset));
+            if (transfer.ackedOffset >= transfer.length) {
+                connection.transfers.remove(transfer);
+            }
+            connection.pump();
+        }
+    }
+
+    static void disconnect(UUID player) {
+        CONNECTIONS.remove(player);
+    }
+
+}
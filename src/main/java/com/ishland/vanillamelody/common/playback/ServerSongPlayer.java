@@ -4,13 +4,18 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ishland.vanillamelody.common.Config;
 import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
 import com.ishland.vanillamelody.common.playback.data.Note;
+import com.ishland.vanillamelody.common.playback.sequencer.LightweightSequencer;
+import com.ishland.vanillamelody.common.playback.sequencer.PackedSequence;
 import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
 import com.ishland.vanillamelody.common.playback.synth.NoteReceiver;
+import com.ishland.vanillamelody.common.playback.timeline.NoteTimeline;
+import com.ishland.vanillamelody.common.playback.timeline.NoteTimelineCache;
 import com.ishland.vanillamelody.common.util.DigestUtils;
 import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
-import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.packet.s2c.play.PlaySoundIdS2CPacket;
 import net.minecraft.server.network.ServerPlayerEntity;
@@ -22,86 +27,151 @@ import net.minecraft.util.Identifier;
 import net.minecraft.util.math.Vec3d;
 import org.jetbrains.annotations.Nullable;
 
-import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Sequence;
-import javax.sound.midi.Sequencer;
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BooleanSupplier;
 import java.util.stream.Stream;
 
 public class ServerSongPlayer implements NoteReceiver {
 
+    /**
+     * Scheduling and dispatch pool shared by all stations
+     */
     public static final ScheduledExecutorService EXECUTOR = new ScheduledThreadPoolExecutor(
-            1,
-            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Server Scheduler").setDaemon(true).build()
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Server Scheduler #%d").setDaemon(true).build()
     );
 
     private static final AtomicInteger ID_COUNTER = new AtomicInteger(0);
 
-    public static final ServerSongPlayer INSTANCE = new ServerSongPlayer();
+    private final int syncId = ID_COUNTER.getAndIncrement();
+    private final String name;
+    private final File songsDirectory;
+    private final CopyOnWriteArraySet<ServerPlayerEntity> players = new CopyOnWriteArraySet<>();
+    private final CopyOnWriteArraySet<ServerPlayerEntity> playersWithClientMod = new CopyOnWriteArraySet<>();
 
-    static volatile PlayList playList = null;
+    private final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(this);
 
-    public static Stream<String> playlistSuggestion() {
-        final PlayList list = playList;
-        return list != null ? list.getSongs().stream().map(PlayList.SongInfo::pathWithoutInvalidChars) : Stream.empty();
-    }
+    private final Object reloadLock = new Object();
+    private volatile PlayList playList;
+    private final AtomicInteger index = new AtomicInteger(0);
+    private volatile PlayList.SongInfo playing = null;
+    // identifies the current song in clock packets
+    private volatile int songSerial = 0;
+
+    private final LightweightSequencer sequencer = new LightweightSequencer(synthesizer, this::onMetaMessage);
+    // non-null while the current song plays from its compiled timeline instead of the live synthesizer
+    @Nullable
+    private volatile NoteTimeline.Cursor timelineCursor = null;
 
-    public static void reload() {
-        playList = PlayList.scan(FabricLoader.getInstance().getConfigDir()
-                .resolve("vanillamelody").resolve("songs").toFile());
-        System.out.println("Found %d midi songs".formatted(playList.getSongs().size()));
+    private final AtomicBoolean tickQueued = new AtomicBoolean(false);
+
+    // the song at the queue position and its contents loading in the background, guarded by this
+    @Nullable
+    private PlayList.SongInfo pendingSong = null;
+    @Nullable
+    private CompletableFuture<PackedSequence> pendingSequence = null;
+    // songs failing to load in a row, playback pauses after one pass over the playlist
+    private int consecutiveFailures = 0;
+    // hashes of songs whose failure has been logged already
+    private final ObjectOpenHashSet<String> failedSongs = new ObjectOpenHashSet<>();
+
+    private record BankSnapshot(Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments,
+                                Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions,
+                                byte[] sha256) {
     }
 
-    static {
+    @Nullable
+    private volatile BankSnapshot bankSnapshot = null;
+
+    ServerSongPlayer(String name, File songsDirectory) {
+        this.name = name;
+        this.songsDirectory = songsDirectory;
         reload();
+        this.sequencer.setPositionListener(this::onSequencerPosition);
+        if (Config.WATCH_SONG_DIRECTORIES) {
+            PlayListWatcher.watch(this, songsDirectory);
+        }
     }
 
-    private final int syncId = ID_COUNTER.getAndIncrement();
-    private final CopyOnWriteArraySet<ServerPlayerEntity> players = new CopyOnWriteArraySet<>();
-    private final CopyOnWriteArraySet<ServerPlayerEntity> playersWithClientMod = new CopyOnWriteArraySet<>();
+    public int getSyncId() {
+        return syncId;
+    }
 
-    private final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(this);
+    public String getName() {
+        return name;
+    }
 
-    private final AtomicInteger index = new AtomicInteger(0);
-    private volatile int playlistHash = System.identityHashCode(playList);
-    private volatile PlayList.SongInfo playing = null;
+    public PlayList getPlayList() {
+        return playList;
+    }
+
+    public int getListenerCount() {
+        return players.size();
+    }
+
+    public Stream<String> playlistSuggestion() {
+        final PlayList list = playList;
+        return list != null ? list.getSongs().stream().map(PlayList.SongInfo::pathWithoutInvalidChars) : Stream.empty();
+    }
+
+    public void reload() {
+        synchronized (reloadLock) {
+            final PlayList list = PlayList.scan(songsDirectory, playList);
+            updatePlayList(list);
+            System.out.println("Found %d midi songs for station %s".formatted(list.getSongs().size(), name));
+        }
+    }
 
-    private volatile Sequencer sequencer;
+    void applyFileChanges(Collection<File> files) {
+        synchronized (reloadLock) {
+            final PlayList list = playList.update(songsDirectory, files);
+            updatePlayList(list);
+            System.out.println("Applied %d file changes to station %s, now %d midi songs".formatted(files.size(), name, list.getSongs().size()));
+        }
+    }
 
-    {
-        try {
-            reopenSequencer();
-        } catch (MidiUnavailableException e) {
-            throw new RuntimeException(e);
+    /**
+     * Swaps the playlist, the queue continues after the currently playing song if it is still present
+     */
+    private void updatePlayList(PlayList list) {
+        synchronized (this) {
+            final PlayList.SongInfo playing = this.playing;
+            if (playing != null) {
+                final int position = list.indexOf(playing.relativeFilePath());
+                if (position >= 0) {
+                    index.set(position + 1);
+                }
+            }
+            SongStore.replace(this.playList, list);
+            this.playList = list;
+            this.consecutiveFailures = 0;
         }
+    }
 
-        EXECUTOR.scheduleAtFixedRate(() -> {
+    /**
+     * Queues a tick on the shared pool unless the previous one is still running
+     */
+    void scheduleTick() {
+        if (!tickQueued.compareAndSet(false, true)) return;
+        EXECUTOR.execute(() -> {
             try {
                 tick();
             } catch (Throwable t) {
                 t.printStackTrace();
+            } finally {
+                tickQueued.set(false);
             }
-        }, 0, 20, TimeUnit.MILLISECONDS);
-    }
-
-    private Sequencer reopenSequencer() throws MidiUnavailableException {
-        synchronized (this) {
-            Sequencer sequencer = this.sequencer;
-            if (sequencer != null) sequencer.close();
-            sequencer = this.sequencer = MidiSystem.getSequencer(false);
-            sequencer.getTransmitter().setReceiver(synthesizer);
-            sequencer.addMetaEventListener(this::onMetaMessage);
-            sequencer.open();
-            return sequencer;
-        }
+        });
     }
 
     public void addPlayer(ServerPlayerEntity player) {
@@ -109,6 +179,7 @@ public class ServerSongPlayer implements NoteReceiver {
             playersWithClientMod.add(player);
             sendInitialData(player);
             notifySongChange(player);
+            notifyUpcoming(player);
         }
         players.add(player);
         sendSongChange(player);
@@ -122,12 +193,7 @@ public class ServerSongPlayer implements NoteReceiver {
     }
 
     public void nextSong() {
-        synchronized (this) {
-            final Sequencer sequencer = this.sequencer;
-            if (sequencer == null) return;
-            sequencer.setTickPosition(sequencer.getTickLength() - 1);
-            sequencer.stop();
-        }
+        sequencer.stop();
     }
 
     public void setSong(String path) {
@@ -135,7 +201,10 @@ public class ServerSongPlayer implements NoteReceiver {
         for (int i = 0, songsSize = songs.size(); i < songsSize; i++) {
             PlayList.SongInfo song = songs.get(i);
             if (song.pathWithoutInvalidChars().equals(path)) {
-                this.index.set(i);
+                synchronized (this) {
+                    this.index.set(i);
+                    this.consecutiveFailures = 0;
+                }
                 nextSong();
                 return;
             }
@@ -143,44 +212,75 @@ public class ServerSongPlayer implements NoteReceiver {
     }
 
     public void tick() {
-        synthesizer.tick();
-
-        if (System.identityHashCode(playList) != playlistHash) {
-            playlistHash = System.identityHashCode(playList);
-            index.set(0);
+        if (timelineCursor == null) {
+            synthesizer.tick();
         }
 
-        Sequencer sequencer = this.sequencer;
-        if (sequencer != null && !sequencer.isRunning()) {
+        final PlayList playList = this.playList;
+
+        if (!sequencer.isRunning()) {
             if (playList.getSongs().isEmpty()) return;
 
             synchronized (this) {
-                sequencer.stop();
-                this.synthesizer.reset(true);
+                // every song failed to load, wait for the playlist to change
+                if (consecutiveFailures >= playList.getSongs().size()) return;
+                final int current = index.get();
+                final PlayList.SongInfo songInfo = playList.getSongs().get(current % playList.getSongs().size());
+                if (pendingSong != songInfo || pendingSequence == null) {
+                    pendingSong = songInfo;
+                    pendingSequence = songInfo.preload();
+                }
+                // the song is loaded in the background, checked again on the next tick
+                if (!pendingSequence.isDone()) return;
+                if (!index.compareAndSet(current, current + 1)) return;
+                final PackedSequence sequence;
                 try {
-                    final PlayList.SongInfo songInfo = playList.getSongs().get(index.getAndIncrement() % playList.getSongs().size());
-                    this.playing = songInfo;
-//                    sequencer.setSequence((Sequence) null);
-                    sequencer = reopenSequencer();
-                    this.synthesizer.reset(true);
-                    sequencer.setSequence(songInfo.sequence());
-                    notifySongChange();
-                    sequencer.start();
-                    for (ServerPlayerEntity player : this.players) {
-                        sendSongChange(player);
+                    sequence = pendingSequence.join();
+                } catch (CompletionException | CancellationException e) {
+                    consecutiveFailures++;
+                    if (failedSongs.add(DigestUtils.bytesToHex(songInfo.sha256()))) {
+                        System.out.println("Failed to load midi file: " + songInfo.relativeFilePath());
+                        e.printStackTrace();
                     }
-                } catch (InvalidMidiDataException | MidiUnavailableException e) {
-                    e.printStackTrace();
+                    preloadNext(playList);
+                    return;
+                }
+                consecutiveFailures = 0;
+                sequencer.stop();
+                this.synthesizer.reset(true);
+                this.playing = songInfo;
+                this.songSerial++;
+                sequencer.setSequence(sequence);
+                this.synthesizer.reset(true);
+                final NoteTimeline timeline = NoteTimelineCache.getOrCompile(songInfo);
+                this.timelineCursor = timeline != null ? timeline.cursor() : null;
+                sequencer.setMuted(timeline != null);
+                preloadNext(playList);
+                notifySongChange();
+                notifyUpcoming();
+                sequencer.start();
+                for (ServerPlayerEntity player : this.players) {
+                    sendSongChange(player);
                 }
             }
         }
     }
 
+    /**
+     * Gets the next song loaded and compiled while the current one plays
+     */
+    private void preloadNext(PlayList playList) {
+        final PlayList.SongInfo nextSong = playList.getSongs().get(index.get() % playList.getSongs().size());
+        pendingSong = nextSong;
+        pendingSequence = nextSong.preload();
+        pendingSequence.thenRun(() -> NoteTimelineCache.getOrCompile(nextSong));
+    }
+
     private void sendSongChange(ServerPlayerEntity player) {
         final PlayList.SongInfo info = this.playing;
         if (info == null) return;
         player.sendMessage(
-                new LiteralText("Now playing: %s".formatted(info.fileFormat().properties().getOrDefault("title", info.relativeFilePath())))
+                new LiteralText("Now playing: %s".formatted(info.displayName()))
                         .setStyle(Style.EMPTY.withColor(Formatting.GREEN)),
                 false
         );
@@ -196,14 +296,64 @@ public class ServerSongPlayer implements NoteReceiver {
         buf.release();
     }
 
+    private void notifyUpcoming() {
+        final PacketByteBuf buf = createUpcomingBuf();
+        if (buf == null) return;
+        for (ServerPlayerEntity player : this.playersWithClientMod) {
+            buf.retain();
+            ServerPlayNetworking.send(player, PacketConstants.SERVER_PLAYBACK_UPCOMING, buf);
+        }
+        buf.release();
+    }
+
+    private void notifyUpcoming(ServerPlayerEntity player) {
+        final PacketByteBuf buf = createUpcomingBuf();
+        if (buf == null) return;
+        ServerPlayNetworking.send(player, PacketConstants.SERVER_PLAYBACK_UPCOMING, buf);
+    }
+
+    /**
+     * Lists the songs queued after the current one so clients can download them ahead of time
+     */
+    @Nullable
+    private PacketByteBuf createUpcomingBuf() {
+        final ReferenceArrayList<PlayList.SongInfo> songs = this.playList.getSongs();
+        final int count = Math.min(Config.PREFETCH_UPCOMING_SONGS, songs.size());
+        if (count <= 0) return null;
+        return createUpcomingBuf(this.syncId, songs, index.get(), count);
+    }
+
+    static PacketByteBuf createUpcomingBuf(int syncId, ReferenceArrayList<PlayList.SongInfo> songs, int start, int count) {
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(4 + 5 + count * DigestUtils.SHA256_BYTES));
+        buf.writeInt(syncId);
+        buf.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            buf.writeBytes(songs.get((start + i) % songs.size()).sha256());
+        }
+        return buf;
+    }
+
     void sendInitialData(ServerPlayerEntity player) {
-        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(4 + DigestUtils.SHA256_BYTES));
         buf.writeInt(syncId);
-        MidiInstruments.writeInstruments(synthesizer.getInstrumentBank(), buf);
-        MidiInstruments.writePercussions(synthesizer.getPercussionBank(), buf);
+        buf.writeBytes(bankHash());
         ServerPlayNetworking.send(player, PacketConstants.SERVER_PLAYBACK_INIT, buf);
     }
 
+    /**
+     * @return hash of the current instrument bank, the bank is only encoded again after it is replaced
+     */
+    private byte[] bankHash() {
+        final Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments = synthesizer.getInstrumentBank();
+        final Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions = synthesizer.getPercussionBank();
+        BankSnapshot snapshot = this.bankSnapshot;
+        if (snapshot == null || snapshot.instruments != instruments || snapshot.percussions != percussions) {
+            snapshot = new BankSnapshot(instruments, percussions, InstrumentBankStore.register(MidiInstruments.encodeBank(instruments, percussions)));
+            this.bankSnapshot = snapshot;
+        }
+        return snapshot.sha256;
+    }
+
     void notifySongChange(ServerPlayerEntity player) {
         final PacketByteBuf buf = createSequenceChangeBuf();
         if (buf == null) return;
@@ -213,13 +363,44 @@ public class ServerSongPlayer implements NoteReceiver {
     @Nullable
     private PacketByteBuf createSequenceChangeBuf() {
         final PlayList.SongInfo info = this.playing;
-        final Sequencer sequencer = this.sequencer;
-        if (info == null || sequencer == null) return null;
-        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(4 + DigestUtils.SHA256_BYTES + 8));
-        buf.writeInt(this.syncId);
-        buf.writeBytes(info.sha256());
-        buf.writeLong(sequencer.getTickPosition());
-        buf.writeLong(sequencer.getMicrosecondPosition());
+        if (info == null) return null;
+        return createSequenceChangeBuf(this.syncId, info.sha256(), sequencer.getTickPosition(), sequencer.getMicrosecondPosition(), this.songSerial);
+    }
+
+    static PacketByteBuf createSequenceChangeBuf(int syncId, byte[] sha256, long tickPosition, long microsecondPosition, int songSerial) {
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(4 + DigestUtils.SHA256_BYTES + 8 + 8 + 5));
+        buf.writeInt(syncId);
+        buf.writeBytes(sha256);
+        buf.writeLong(tickPosition);
+        buf.writeLong(microsecondPosition);
+        buf.writeVarInt(songSerial);
+        return buf;
+    }
+
+    public static long nowMicros() {
+        return System.nanoTime() / 1000L;
+    }
+
+    /**
+     * Sends the current position with a timestamp so clients can correct their drift
+     */
+    void sendClock() {
+        if (this.playing == null || !sequencer.isRunning() || this.playersWithClientMod.isEmpty()) return;
+        final long position = sequencer.getMicrosecondPosition();
+        final PacketByteBuf buf = createClockBuf(this.syncId, this.songSerial, nowMicros(), position);
+        for (ServerPlayerEntity player : this.playersWithClientMod) {
+            buf.retain();
+            ServerPlayNetworking.send(player, PacketConstants.SERVER_PLAYBACK_CLOCK, buf);
+        }
+        buf.release();
+    }
+
+    static PacketByteBuf createClockBuf(int syncId, int songSerial, long serverTime, long microsecondPosition) {
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(4 + 5 + 10 + 10));
+        buf.writeInt(syncId);
+        buf.writeVarInt(songSerial);
+        buf.writeVarLong(serverTime);
+        buf.writeVarLong(microsecondPosition);
         return buf;
     }
 
@@ -229,27 +410,49 @@ public class ServerSongPlayer implements NoteReceiver {
         ServerPlayNetworking.send(player, PacketConstants.SERVER_PLAYBACK_STOP, buf);
     }
 
+    private void onSequencerPosition(long micros) {
+        final NoteTimeline.Cursor cursor = this.timelineCursor;
+        if (cursor != null) {
+            cursor.advance(micros, this::sendNote);
+        }
+    }
+
     @Override
     public void playNote(Note note, BooleanSupplier isDone) {
-        final Identifier sound = new Identifier(note.instrument());
+        sendNote(new Identifier(note.instrument()), note.volume(), note.pitch(), note.panning());
+    }
+
+    @Override
+    public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+        sendNote(sound, volume, pitch, panning);
+    }
+
+    private void sendNote(Identifier sound, float noteVolume, float pitch, int panning) {
         for (ServerPlayerEntity player : players) {
             if (!Config.ENABLE_SERVERSIDE_PLAYBACK || playersWithClientMod.contains(player)) continue;
 
-            final Vec3d pos = NoteUtil.stereoPan(player.getPos(), player.getYaw(), (float) (note.panning() / 16.0));
-            float volume = note.volume();
+            final Vec3d pos = NoteUtil.stereoPan(player.getPos(), player.getYaw(), (float) (panning / 16.0));
+            float volume = noteVolume;
             while (volume > 0.0f) {
-                player.networkHandler.sendPacket(new PlaySoundIdS2CPacket(
-                        sound,
-                        SoundCategory.RECORDS,
-                        pos,
-                        Math.min(volume, 0.9f),
-                        note.pitch()
-                ));
+                player.networkHandler.sendPacket(createNotePacket(sound, pos, volume, pitch));
                 volume -= 0.9f;
             }
         }
     }
 
+    /**
+     * Sound packet of one part of a note, louder notes are split into several packets of up to 0.9 volume
+     */
+    static PlaySoundIdS2CPacket createNotePacket(Identifier sound, Vec3d pos, float volume, float pitch) {
+        return new PlaySoundIdS2CPacket(
+                sound,
+                SoundCategory.RECORDS,
+                pos,
+                Math.min(volume, 0.9f),
+                pitch
+        );
+    }
+
     public void onMetaMessage(MetaMessage metaMessage) {
         switch (metaMessage.getType()) {
             case 0x01: // Text
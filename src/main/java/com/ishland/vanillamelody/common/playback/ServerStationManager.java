@@ -0,0 +1,144 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.util.GameDirs;
+import it.unimi.dsi.fastutil.ints.Int2ReferenceMap;
+import it.unimi.dsi.fastutil.ints.Int2ReferenceMaps;
+import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
+import net.minecraft.server.network.ServerPlayerEntity;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of all radio stations and which station each player is listening to
+ * <p>
+ * The default station plays {@code config/vanillamelody/songs}, every subdirectory of
+ * {@code config/vanillamelody/stations} becomes an additional station with its own playlist.
+ */
+public class ServerStationManager {
+
+    public static final String DEFAULT_STATION = "default";
+
+    private static final File BASE_DIR = GameDirs.configDir().resolve("vanillamelody").toFile();
+
+    private static final ConcurrentHashMap<String, ServerSongPlayer> STATIONS_BY_NAME = new ConcurrentHashMap<>();
+    private static final Int2ReferenceMap<ServerSongPlayer> STATIONS_BY_ID = Int2ReferenceMaps.synchronize(new Int2ReferenceOpenHashMap<>());
+    private static final CopyOnWriteArrayList<ServerSongPlayer> STATIONS = new CopyOnWriteArrayList<>();
+    private static final ConcurrentHashMap<UUID, ServerSongPlayer> LISTENING = new ConcurrentHashMap<>();
+
+    private static final ServerSongPlayer DEFAULT = createStation(DEFAULT_STATION, new File(BASE_DIR, "songs"));
+
+    static {
+        discoverStations();
+
+        // one timer for all stations, each station tick is dispatched to the shared pool
+        ServerSongPlayer.EXECUTOR.scheduleAtFixedRate(() -> {
+            for (ServerSongPlayer station : STATIONS) {
+                station.scheduleTick();
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS);
+        ServerSongPlayer.EXECUTOR.scheduleAtFixedRate(() -> {
+            for (ServerSongPlayer station : STATIONS) {
+                try {
+                    station.sendClock();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static ServerSongPlayer createStation(String name, File directory) {
+        final ServerSongPlayer station = new ServerSongPlayer(name, directory);
+        STATIONS_BY_NAME.put(name, station);
+        STATIONS_BY_ID.put(station.getSyncId(), station);
+        STATIONS.add(station);
+        return station;
+    }
+
+    private static void discoverStations() {
+        final File stationsDir = new File(BASE_DIR, "stations");
+        stationsDir.mkdirs();
+        final File[] files = stationsDir.listFiles(File::isDirectory);
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (File dir : files) {
+            if (!STATIONS_BY_NAME.containsKey(dir.getName())) {
+                createStation(dir.getName(), dir);
+            }
+        }
+    }
+
+    public static void reload() {
+        synchronized (ServerStationManager.class) {
+            for (ServerSongPlayer station : STATIONS) {
+                station.reload();
+            }
+            discoverStations();
+        }
+    }
+
+    public static ServerSongPlayer getDefault() {
+        return DEFAULT;
+    }
+
+    @Nullable
+    public static ServerSongPlayer get(String name) {
+        return STATIONS_BY_NAME.get(name);
+    }
+
+    @Nullable
+    public static ServerSongPlayer get(int syncId) {
+        return STATIONS_BY_ID.get(syncId);
+    }
+
+    public static Collection<ServerSongPlayer> getStations() {
+        return STATIONS;
+    }
+
+    @Nullable
+    public static PlayList.SongInfo findSong(byte[] sha256) {
+        return SongStore.get(sha256);
+    }
+
+    @Nullable
+    public static ServerSongPlayer getListening(ServerPlayerEntity player) {
+        return LISTENING.get(player.getUuid());
+    }
+
+    /**
+     * Moves the player to the given station, leaving the previous one if any
+     */
+    public static void join(ServerPlayerEntity player, ServerSongPlayer station) {
+        final ServerSongPlayer previous = LISTENING.put(player.getUuid(), station);
+        if (previous != null) previous.removePlayer(player);
+        station.removePlayer(player);
+        station.addPlayer(player);
+    }
+
+    public static void leave(ServerPlayerEntity player) {
+        final ServerSongPlayer previous = LISTENING.remove(player.getUuid());
+        if (previous != null) previous.removePlayer(player);
+    }
+
+    /**
+     * Re-adds the player to its current station, used after respawn or client mod handshake
+     */
+    public static void rejoin(ServerPlayerEntity oldPlayer, ServerPlayerEntity newPlayer) {
+        final ServerSongPlayer station = LISTENING.get(oldPlayer.getUuid());
+        if (station != null && station.removePlayer(oldPlayer)) {
+            station.addPlayer(newPlayer);
+        }
+    }
+
+    public static void init() {
+    }
+
+}
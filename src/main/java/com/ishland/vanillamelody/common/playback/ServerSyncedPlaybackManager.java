@@ -3,84 +3,99 @@ package com.ishland.vanillamelody.common.playback;
 import com.google.common.collect.Sets;
 import com.ishland.vanillamelody.common.util.DigestUtils;
 import io.netty.buffer.Unpooled;
-import it.unimi.dsi.fastutil.ints.Int2ReferenceMap;
-import it.unimi.dsi.fastutil.ints.Int2ReferenceMaps;
-import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.minecraft.network.PacketByteBuf;
 
-import java.util.Arrays;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ServerSyncedPlaybackManager {
 
     static final Set<UUID> PLAYERS_WITH_CLIENT_INSTALLED = Sets.newConcurrentHashSet();
+    private static final ConcurrentHashMap<UUID, PayloadCodec> PLAYER_CODECS = new ConcurrentHashMap<>();
 
-    private static final Int2ReferenceMap<ServerSongPlayer> SONG_PLAYERS = Int2ReferenceMaps.synchronize(new Int2ReferenceOpenHashMap<>(), ServerSyncedPlaybackManager.class);
-
-    static {
-        SONG_PLAYERS.put(0, ServerSongPlayer.INSTANCE);
-    }
+    // upper bound of files in a single request packet
+    private static final int MAX_REQUEST_BATCH = 256;
 
     static {
         ServerPlayConnectionEvents.INIT.register((handler, server) -> {
             ServerPlayNetworking.registerReceiver(handler, PacketConstants.CLIENT_HELLO, (server1, player, handler1, buf, responseSender) -> {
-                System.out.println("%s joined with client VanillaMelody installed".formatted(player.getName().asString()));
-                PLAYERS_WITH_CLIENT_INSTALLED.add(player.getUuid());
-                synchronized (ServerSyncedPlaybackManager.class) {
-                    for (Int2ReferenceMap.Entry<ServerSongPlayer> entry : SONG_PLAYERS.int2ReferenceEntrySet()) {
-                        if (entry.getValue().removePlayer(player))
-                            entry.getValue().addPlayer(player);
-                    }
+                final int protocolVersion = buf.isReadable() ? buf.readVarInt() : 0;
+                if (protocolVersion != PacketConstants.PROTOCOL_VERSION) {
+                    System.out.println("%s joined with incompatible client VanillaMelody (protocol %d, expected %d)".formatted(
+                            player.getName().asString(), protocolVersion, PacketConstants.PROTOCOL_VERSION));
+                    return;
                 }
+                final PayloadCodec codec = PayloadCodec.negotiate(buf.readVarInt());
+                System.out.println("%s joined with client VanillaMelody installed, using %s transfers".formatted(player.getName().asString(), codec));
+                PLAYER_CODECS.put(player.getUuid(), codec);
+                ServerFileTransferManager.connect(player.getUuid(), responseSender);
+                PLAYERS_WITH_CLIENT_INSTALLED.add(player.getUuid());
+                ServerStationManager.rejoin(player, player);
             });
             ServerPlayNetworking.registerReceiver(handler, PacketConstants.CLIENT_MIDI_FILE_REQUEST, (server1, player, handler1, buf, responseSender) -> {
-                final PlayList playList = ServerSongPlayer.playList;
-
-                if (playList != null) __label01:{
-                    if (buf.readableBytes() != DigestUtils.SHA256_BYTES) break __label01;
-                    byte[] requestedHash = new byte[DigestUtils.SHA256_BYTES];
+                final int count = buf.readVarInt();
+                if (count <= 0 || count > MAX_REQUEST_BATCH) return;
+                final ServerFileTransferManager.FileRequest[] requests = new ServerFileTransferManager.FileRequest[count];
+                for (int i = 0; i < count; i++) {
+                    final byte[] requestedHash = new byte[DigestUtils.SHA256_BYTES];
                     buf.readBytes(requestedHash);
-
-                    for (PlayList.SongInfo song : playList.getSongs()) {
-                        if (Arrays.equals(requestedHash, song.sha256())) {
-                            final PacketByteBuf responseBuf = new PacketByteBuf(Unpooled.buffer(1 + DigestUtils.SHA256_BYTES + 5 + song.sequenceBytes().length));
-                            responseBuf.writeByte(0x01);
-                            responseBuf.writeBytes(requestedHash);
-                            responseBuf.writeVarInt(song.sequenceBytes().length);
-                            responseBuf.writeBytes(song.sequenceBytes());
-
-                            responseSender.sendPacket(PacketConstants.SERVER_MIDI_FILE_RESPONSE, responseBuf);
-                            return;
-                        }
-                    }
-
-                    // failed
-                    final PacketByteBuf responseBuf = new PacketByteBuf(Unpooled.buffer(1));
-                    responseBuf.writeByte(0x00);
-
-                    responseSender.sendPacket(PacketConstants.SERVER_MIDI_FILE_RESPONSE, responseBuf);
+                    requests[i] = new ServerFileTransferManager.FileRequest(requestedHash, buf.readVarInt(), buf.readBoolean());
                 }
+                final UUID uuid = player.getUuid();
+                final PayloadCodec codec = PLAYER_CODECS.getOrDefault(uuid, PayloadCodec.RAW);
+
+                // lazily loaded songs may need to be read from disk, compression happens on first transfer
+                ServerSongPlayer.EXECUTOR.execute(() -> ServerFileTransferManager.request(uuid, responseSender, requests, codec));
+            });
+            ServerPlayNetworking.registerReceiver(handler, PacketConstants.CLIENT_MIDI_FILE_ACK, (server1, player, handler1, buf, responseSender) -> {
+                if (buf.readableBytes() < DigestUtils.SHA256_BYTES) return;
+                final byte[] hash = new byte[DigestUtils.SHA256_BYTES];
+                buf.readBytes(hash);
+                ServerFileTransferManager.acknowledge(player.getUuid(), hash, buf.readVarInt());
+            });
+            ServerPlayNetworking.registerReceiver(handler, PacketConstants.CLIENT_BANK_REQUEST, (server1, player, handler1, buf, responseSender) -> {
+                if (buf.readableBytes() < DigestUtils.SHA256_BYTES) return;
+                final byte[] requestedHash = new byte[DigestUtils.SHA256_BYTES];
+                buf.readBytes(requestedHash);
+                final byte[] bank = InstrumentBankStore.get(requestedHash);
+                final PacketByteBuf responseBuf = new PacketByteBuf(Unpooled.buffer(DigestUtils.SHA256_BYTES + (bank != null ? bank.length : 0)));
+                responseBuf.writeBytes(requestedHash);
+                if (bank != null) responseBuf.writeBytes(bank);
+                responseSender.sendPacket(PacketConstants.SERVER_BANK_RESPONSE, responseBuf);
+            });
+            ServerPlayNetworking.registerReceiver(handler, PacketConstants.CLIENT_CLOCK_PING, (server1, player, handler1, buf, responseSender) -> {
+                final long clientTime = buf.readVarLong();
+                final PacketByteBuf responseBuf = new PacketByteBuf(Unpooled.buffer(20));
+                responseBuf.writeVarLong(clientTime);
+                responseBuf.writeVarLong(ServerSongPlayer.nowMicros());
+                responseSender.sendPacket(PacketConstants.SERVER_CLOCK_PONG, responseBuf);
             });
             ServerPlayNetworking.registerReceiver(handler, PacketConstants.CLIENT_PLAYBACK_SEQUENCE_REQUEST, (server1, player, handler1, buf, responseSender) -> {
                 final int syncId = buf.readInt();
-                final ServerSongPlayer songPlayer = SONG_PLAYERS.get(syncId);
+                final ServerSongPlayer songPlayer = ServerStationManager.get(syncId);
                 if (songPlayer != null) {
                     songPlayer.notifySongChange(player);
                 }
             });
         });
         ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
-            sender.sendPacket(PacketConstants.SERVER_HELLO, new PacketByteBuf(Unpooled.buffer(0)));
+            final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(10));
+            buf.writeVarInt(PacketConstants.PROTOCOL_VERSION);
+            buf.writeVarInt(PayloadCodec.supportedMask());
+            sender.sendPacket(PacketConstants.SERVER_HELLO, buf);
         });
         ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
             PLAYERS_WITH_CLIENT_INSTALLED.remove(handler.player.getUuid());
+            PLAYER_CODECS.remove(handler.player.getUuid());
+            ServerFileTransferManager.disconnect(handler.player.getUuid());
         });
     }
 
     public static void init() {
+        ServerStationManager.init();
     }
 
 }
@@ -0,0 +1,101 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ishland.vanillamelody.common.Config;
+import com.ishland.vanillamelody.common.playback.sequencer.PackedSequence;
+import com.ishland.vanillamelody.common.playback.sequencer.StandardMidiFileParser;
+import com.ishland.vanillamelody.common.util.DigestUtils;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Size-bounded cache of song contents for lazily loaded songs, keyed by sha256
+ */
+public class SongCache {
+
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Song Loader").setDaemon(true).build()
+    );
+
+    private static final Cache<String, SongData> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(1, Config.SONG_CACHE_SIZE_MB) * 1024L * 1024L)
+            .weigher((String key, SongData data) -> data.weight())
+            .build();
+
+    public static final class SongData {
+
+        private final byte[] sequenceBytes;
+        private final PackedSequence sequence;
+        // deflated sequence bytes, computed on first transfer
+        volatile byte[] deflated = null;
+
+        public SongData(byte[] sequenceBytes, PackedSequence sequence) {
+            this.sequenceBytes = sequenceBytes;
+            this.sequence = sequence;
+        }
+
+        public byte[] sequenceBytes() {
+            return sequenceBytes;
+        }
+
+        public PackedSequence sequence() {
+            return sequence;
+        }
+
+        int weight() {
+            // rough estimate of the retained heap
+            return (int) Math.min(Integer.MAX_VALUE, sequenceBytes.length * 2L + sequence.size() * 8L + sequence.extendedCount() * 64L);
+        }
+
+    }
+
+    static SongData get(File file, byte[] sha256) throws IOException {
+        try {
+            return CACHE.get(DigestUtils.bytesToHex(sha256), () -> load(file, sha256));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Loads the song into the cache in the background
+     *
+     * @return the loaded contents, completed exceptionally if the song cannot be loaded
+     */
+    static CompletableFuture<SongData> preload(File file, byte[] sha256) {
+        final SongData cached = CACHE.getIfPresent(DigestUtils.bytesToHex(sha256));
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return get(file, sha256);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, LOADER);
+    }
+
+    private static SongData load(File file, byte[] sha256) throws IOException {
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        if (!Arrays.equals(sha256, DigestUtils.sha256(bytes))) {
+            throw new IOException("%s changed since it was scanned".formatted(file));
+        }
+        try {
+            return new SongData(bytes, StandardMidiFileParser.parse(bytes));
+        } catch (InvalidMidiDataException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import com.ishland.vanillamelody.common.util.GameDirs;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+/**
+ * Persistent metadata of the songs in a directory, keyed by relative path
+ * <p>
+ * An entry is only valid as long as the file size and modification time match.
+ */
+public class SongIndex {
+
+    private static final Path INDEX_DIR = GameDirs.gameDir()
+            .resolve("cache").resolve("vanillamelody").resolve("song_index");
+
+    private static final int MAGIC = 0x564D5349; // VMSI
+    private static final int VERSION = 1;
+
+    public record Entry(String relativeFilePath, long size, long lastModified, byte[] sha256, @Nullable String title, long microsecondLength) {
+
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+    }
+
+    private final Object2ObjectOpenHashMap<String, Entry> entries;
+
+    public SongIndex() {
+        this(new Object2ObjectOpenHashMap<>());
+    }
+
+    private SongIndex(Object2ObjectOpenHashMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    @Nullable
+    public Entry get(String relativeFilePath) {
+        return entries.get(relativeFilePath);
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.relativeFilePath(), entry);
+    }
+
+    public void remove(String relativeFilePath) {
+        entries.remove(relativeFilePath);
+    }
+
+    public SongIndex copy() {
+        return new SongIndex(new Object2ObjectOpenHashMap<>(entries));
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    private static Path indexFile(File directory) {
+        return INDEX_DIR.resolve(DigestUtils.bytesToHex(DigestUtils.sha256(directory.getAbsolutePath().getBytes(StandardCharsets.UTF_8))));
+    }
+
+    public static SongIndex load(File directory) {
+        final Path path = indexFile(directory);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return new SongIndex();
+            final int count = in.readInt();
+            final Object2ObjectOpenHashMap<String, Entry> entries = new Object2ObjectOpenHashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                final String relativeFilePath = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                final byte[] sha256 = new byte[DigestUtils.SHA256_BYTES];
+                in.readFully(sha256);
+                final String title = in.readBoolean() ? in.readUTF() : null;
+                final long microsecondLength = in.readLong();
+                entries.put(relativeFilePath, new Entry(relativeFilePath, size, lastModified, sha256, title, microsecondLength));
+            }
+            return new SongIndex(entries);
+        } catch (NoSuchFileException e) {
+            return new SongIndex();
+        } catch (IOException e) {
+            System.out.println("Failed to load song index for " + directory);
+            e.printStackTrace();
+            return new SongIndex();
+        }
+    }
+
+    public void save(File directory) {
+        final Path path = indexFile(directory);
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(INDEX_DIR);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.relativeFilePath());
+                    out.writeLong(entry.size());
+                    out.writeLong(entry.lastModified());
+                    out.write(entry.sha256());
+                    out.writeBoolean(entry.title() != null);
+                    if (entry.title() != null) out.writeUTF(entry.title());
+                    out.writeLong(entry.microsecondLength());
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Failed to save song index for " + directory);
+            e.printStackTrace();
+        }
+    }
+
+}
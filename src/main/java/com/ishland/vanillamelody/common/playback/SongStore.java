@@ -0,0 +1,93 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed view of the songs of all stations, keyed by sha256
+ * <p>
+ * Every distinct song content is stored once no matter how many files or stations contain it,
+ * the most recently registered song for a hash that is still registered is the one handed out.
+ */
+public class SongStore {
+
+    private static final ConcurrentHashMap<String, Entry> SONGS = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+
+        private volatile PlayList.SongInfo song;
+        private final ReferenceArrayList<PlayList.SongInfo> registrants = new ReferenceArrayList<>(1);
+
+        private void register(PlayList.SongInfo song) {
+            this.registrants.add(song);
+            this.song = song;
+        }
+
+        /**
+         * @return whether no registrant is left
+         */
+        private boolean unregister(PlayList.SongInfo song) {
+            final int index = this.registrants.lastIndexOf(song);
+            if (index == -1) return this.registrants.isEmpty();
+            this.registrants.remove(index);
+            if (this.registrants.isEmpty()) return true;
+            if (this.song == song && !this.registrants.contains(song)) {
+                this.song = this.registrants.get(this.registrants.size() - 1);
+            }
+            return false;
+        }
+    }
+
+    @Nullable
+    public static PlayList.SongInfo get(byte[] sha256) {
+        final Entry entry = SONGS.get(DigestUtils.bytesToHex(sha256));
+        return entry != null ? entry.song : null;
+    }
+
+    public static boolean contains(byte[] sha256) {
+        return SONGS.containsKey(DigestUtils.bytesToHex(sha256));
+    }
+
+    /**
+     * Resolves many hashes at once
+     *
+     * @return songs in request order, null for unknown hashes
+     */
+    public static PlayList.SongInfo[] getAll(byte[][] sha256s) {
+        final PlayList.SongInfo[] songs = new PlayList.SongInfo[sha256s.length];
+        for (int i = 0; i < sha256s.length; i++) {
+            songs[i] = get(sha256s[i]);
+        }
+        return songs;
+    }
+
+    public static int size() {
+        return SONGS.size();
+    }
+
+    /**
+     * Replaces the songs contributed by a playlist
+     */
+    static void replace(@Nullable PlayList oldList, @Nullable PlayList newList) {
+        synchronized (SONGS) {
+            if (newList != null) {
+                for (PlayList.SongInfo song : newList.getSongs()) {
+                    SONGS.computeIfAbsent(DigestUtils.bytesToHex(song.sha256()), unused -> new Entry()).register(song);
+                }
+            }
+            if (oldList != null) {
+                for (PlayList.SongInfo song : oldList.getSongs()) {
+                    final String key = DigestUtils.bytesToHex(song.sha256());
+                    final Entry entry = SONGS.get(key);
+                    if (entry != null && entry.unregister(song)) {
+                        SONGS.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -1,11 +1,12 @@
 package com.ishland.vanillamelody.common.playback.data;
 
 import com.google.common.base.Preconditions;
-import io.netty.buffer.ByteBuf;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import io.netty.buffer.Unpooled;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.network.PacketByteBuf;
 
-import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Midi instrument to Minecraft instrument mapping
@@ -281,40 +282,74 @@ public class MidiInstruments {
         percussionMapping.put(87, new MidiPercussion(2, 7));
     }
 
-    public static Int2ObjectOpenHashMap<MidiInstrument> readInstruments(ByteBuf buf) {
-        Int2ObjectOpenHashMap<MidiInstrument> map = new Int2ObjectOpenHashMap<>();
-        int size = buf.readShort();
-        for (int i = 0; i < size; i++) {
-            int key = buf.readShort();
-            map.put(key, MidiInstrument.read(buf));
-        }
-        return map;
+    // midi programs and keys are 7 bits
+    private static final int MAX_KEYS = 128;
+
+    public record Bank(Int2ObjectOpenHashMap<MidiInstrument> instruments, Int2ObjectOpenHashMap<MidiPercussion> percussions) {
     }
 
-    public static void writeInstruments(Int2ObjectOpenHashMap<MidiInstrument> mapping, ByteBuf buf) {
-        buf.writeShort(mapping.size());
-        for (Int2ObjectMap.Entry<MidiInstrument> entry : mapping.int2ObjectEntrySet()) {
-            buf.writeShort(entry.getIntKey());
-            entry.getValue().write(buf);
-        }
+    /**
+     * Encodes both mappings as dense arrays indexed by key
+     * <p>
+     * The encoding is deterministic, so a bank is identified by the hash of its encoding.
+     */
+    public static byte[] encodeBank(Int2ObjectOpenHashMap<MidiInstrument> instruments, Int2ObjectOpenHashMap<MidiPercussion> percussions) {
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(512));
+        writeDense(instruments, buf, MidiInstrument::write);
+        writeDense(percussions, buf, MidiPercussion::write);
+        final byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
     }
 
-    public static Int2ObjectOpenHashMap<MidiPercussion> readPercussions(ByteBuf buf) {
-        Int2ObjectOpenHashMap<MidiPercussion> map = new Int2ObjectOpenHashMap<>();
-        int size = buf.readShort();
-        for (int i = 0; i < size; i++) {
-            int key = buf.readShort();
-            map.put(key, MidiPercussion.read(buf));
+    public static Bank decodeBank(byte[] bytes) {
+        final PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(bytes));
+        final Int2ObjectOpenHashMap<MidiInstrument> instruments = readDense(buf, MidiInstrument::read);
+        final Int2ObjectOpenHashMap<MidiPercussion> percussions = readDense(buf, MidiPercussion::read);
+        return new Bank(instruments, percussions);
+    }
+
+    private static <T> void writeDense(Int2ObjectOpenHashMap<T> mapping, PacketByteBuf buf, BiConsumer<T, PacketByteBuf> writer) {
+        int length = 0;
+        for (int key : mapping.keySet()) {
+            Preconditions.checkArgument(key >= 0 && key < MAX_KEYS, "Key out of range: %s", key);
+            length = Math.max(length, key + 1);
+        }
+        buf.writeVarInt(length);
+        // presence bitmap followed by the present entries in key order
+        for (int i = 0; i < length; i += 8) {
+            int bits = 0;
+            for (int j = 0; j < 8 && i + j < length; j++) {
+                if (mapping.containsKey(i + j)) bits |= 1 << j;
+            }
+            buf.writeByte(bits);
+        }
+        for (int key = 0; key < length; key++) {
+            final T value = mapping.get(key);
+            if (value != null) writer.accept(value, buf);
         }
-        return map;
     }
 
-    public static void writePercussions(Int2ObjectOpenHashMap<MidiPercussion> mapping, ByteBuf buf) {
-        buf.writeShort(mapping.size());
-        for (Int2ObjectMap.Entry<MidiPercussion> entry : mapping.int2ObjectEntrySet()) {
-            buf.writeShort(entry.getIntKey());
-            entry.getValue().write(buf);
+    private static <T> Int2ObjectOpenHashMap<T> readDense(PacketByteBuf buf, Function<PacketByteBuf, T> reader) {
+        final int length = buf.readVarInt();
+        Preconditions.checkArgument(length >= 0 && length <= MAX_KEYS, "Invalid length: %s", length);
+        final byte[] present = new byte[(length + 7) >> 3];
+        buf.readBytes(present);
+        final Int2ObjectOpenHashMap<T> mapping = new Int2ObjectOpenHashMap<>(length);
+        for (int key = 0; key < length; key++) {
+            if ((present[key >> 3] & (1 << (key & 7))) != 0) {
+                mapping.put(key, reader.apply(buf));
+            }
         }
+        return mapping;
+    }
+
+    private static int zigZagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int zigZagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
     }
 
     public static class MidiInstrument {
@@ -323,11 +358,10 @@ public class MidiInstruments {
         public final int octaveModifier;
         public final boolean isLongSound; // TODO better name
 
-        public static MidiInstrument read(ByteBuf buffer) {
-            byte mcInstrument = buffer.readByte();
-            int octaveModifier = buffer.readInt();
-            boolean isLongSound = buffer.readBoolean();
-            return new MidiInstrument(mcInstrument, octaveModifier, isLongSound);
+        public static MidiInstrument read(PacketByteBuf buffer) {
+            final int flags = buffer.readUnsignedByte();
+            final int octaveModifier = zigZagDecode(buffer.readVarInt());
+            return new MidiInstrument(flags & 0x0F, octaveModifier, (flags & 0x10) != 0);
         }
 
         public MidiInstrument(int mcInstrument, int octaveModifier, boolean isLongSound) {
@@ -338,10 +372,9 @@ public class MidiInstruments {
             this.isLongSound = isLongSound;
         }
 
-        public void write(ByteBuf buffer) {
-            buffer.writeByte(mcInstrument);
-            buffer.writeInt(octaveModifier);
-            buffer.writeBoolean(isLongSound);
+        public void write(PacketByteBuf buffer) {
+            buffer.writeByte(mcInstrument | (isLongSound ? 0x10 : 0));
+            buffer.writeVarInt(zigZagEncode(octaveModifier));
         }
 
         @Override
@@ -359,10 +392,10 @@ public class MidiInstruments {
         public final int mcInstrument;
         public final int midiKey;
 
-        public static MidiPercussion read(ByteBuf buffer) {
-            byte mcInstrument = buffer.readByte();
-            int midiKey = buffer.readInt();
-            return new MidiPercussion(mcInstrument, midiKey);
+        public static MidiPercussion read(PacketByteBuf buffer) {
+            final int mcInstrument = buffer.readUnsignedByte();
+            final int mcKey = zigZagDecode(buffer.readVarInt());
+            return new MidiPercussion(mcInstrument, mcKey);
         }
 
         public MidiPercussion(int mcInstrument, int mcKey) {
@@ -372,9 +405,9 @@ public class MidiInstruments {
             this.midiKey = mcKey + 33;
         }
 
-        public void write(ByteBuf buffer) {
+        public void write(PacketByteBuf buffer) {
             buffer.writeByte(mcInstrument);
-            buffer.writeInt(midiKey - 33);
+            buffer.writeVarInt(zigZagEncode(midiKey - 33));
         }
     }
 }
@@ -0,0 +1,249 @@
+package com.ishland.vanillamelody.common.playback.sequencer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.midi.MetaEventListener;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Sequencer playing a {@link PackedSequence} into a {@link MinecraftMidiSynthesizer}
+ * <p>
+ * Unlike {@link javax.sound.midi.Sequencer}, this does not own a thread: all running sequencers
+ * are pumped by a single shared driver thread.
+ */
+public class LightweightSequencer {
+
+    private static final ScheduledExecutorService DRIVER = new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Sequencer Driver").setDaemon(true).build()
+    );
+
+    private static final CopyOnWriteArraySet<LightweightSequencer> RUNNING = new CopyOnWriteArraySet<>();
+
+    static {
+        DRIVER.scheduleAtFixedRate(() -> {
+            for (LightweightSequencer sequencer : RUNNING) {
+                try {
+                    sequencer.pump();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, 1, 1, TimeUnit.MILLISECONDS);
+    }
+
+    private final MinecraftMidiSynthesizer synthesizer;
+    @Nullable
+    private final MetaEventListener metaEventListener;
+
+    private PackedSequence sequence = null;
+    private int cursor = 0;
+    private int extendedCursor = 0;
+
+    // position at the time of the last start / seek / tempo change
+    private long anchorMicros = 0L;
+    private long anchorNanos = 0L;
+    private float tempoFactor = 1.0f;
+
+    private volatile boolean running = false;
+    private volatile boolean muted = false;
+    @Nullable
+    private volatile LongConsumer positionListener = null;
+
+    public LightweightSequencer(MinecraftMidiSynthesizer synthesizer, @Nullable MetaEventListener metaEventListener) {
+        this.synthesizer = synthesizer;
+        this.metaEventListener = metaEventListener;
+    }
+
+    public void setSequence(@Nullable PackedSequence sequence) {
+        synchronized (this) {
+            stop();
+            this.sequence = sequence;
+            this.cursor = 0;
+            this.extendedCursor = 0;
+            this.anchorMicros = 0L;
+        }
+    }
+
+    @Nullable
+    public PackedSequence getSequence() {
+        return sequence;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (this.running || this.sequence == null) return;
+            this.anchorNanos = System.nanoTime();
+            this.running = true;
+            RUNNING.add(this);
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (!this.running) return;
+            this.anchorMicros = currentMicros();
+            this.running = false;
+            RUNNING.remove(this);
+            allNotesOff();
+        }
+    }
+
+    public void close() {
+        setSequence(null);
+    }
+
+    /**
+     * When muted, only meta events are dispatched and the synthesizer is left alone
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * Sets a listener receiving the microsecond position after every pump
+     */
+    public void setPositionListener(@Nullable LongConsumer positionListener) {
+        this.positionListener = positionListener;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getTickLength() {
+        final PackedSequence sequence = this.sequence;
+        return sequence != null ? sequence.getTickLength() : 0L;
+    }
+
+    public long getMicrosecondLength() {
+        final PackedSequence sequence = this.sequence;
+        return sequence != null ? sequence.getMicrosecondLength() : 0L;
+    }
+
+    public long getMicrosecondPosition() {
+        synchronized (this) {
+            return currentMicros();
+        }
+    }
+
+    public long getTickPosition() {
+        synchronized (this) {
+            if (this.sequence == null) return 0L;
+            return this.sequence.microsToTick(currentMicros());
+        }
+    }
+
+    public void setTickPosition(long tick) {
+        synchronized (this) {
+            if (this.sequence == null) return;
+            seek(tick, this.sequence.tickToMicros(tick));
+        }
+    }
+
+    public void setMicrosecondPosition(long micros) {
+        synchronized (this) {
+            if (this.sequence == null) return;
+            seek(this.sequence.microsToTick(micros), micros);
+        }
+    }
+
+    public float getTempoFactor() {
+        return tempoFactor;
+    }
+
+    public void setTempoFactor(float factor) {
+        if (factor <= 0.0f) throw new IllegalArgumentException("tempo factor must be positive");
+        synchronized (this) {
+            this.anchorMicros = currentMicros();
+            this.anchorNanos = System.nanoTime();
+            this.tempoFactor = factor;
+        }
+    }
+
+    private long currentMicros() {
+        if (!this.running) return this.anchorMicros;
+        return this.anchorMicros + (long) ((System.nanoTime() - this.anchorNanos) / 1000L * (double) this.tempoFactor);
+    }
+
+    private void seek(long tick, long micros) {
+        final PackedSequence sequence = this.sequence;
+        allNotesOff();
+        this.anchorMicros = micros;
+        this.anchorNanos = System.nanoTime();
+        this.cursor = sequence.firstEventAtOrAfter(tick);
+
+        // chase controllers, programs, pitch bends and sysex up to the new position
+        this.extendedCursor = 0;
+        for (int i = 0; i < this.cursor; i++) {
+            final long event = sequence.event(i);
+            if (PackedSequence.isExtended(event)) {
+                final MidiMessage message = sequence.extendedMessage(this.extendedCursor++);
+                if (!(message instanceof MetaMessage)) {
+                    this.synthesizer.send(message, -1L);
+                }
+                continue;
+            }
+            final int command = PackedSequence.status(event) & 0xF0;
+            if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) continue;
+            this.synthesizer.send(PackedSequence.status(event), PackedSequence.data1(event), PackedSequence.data2(event));
+        }
+    }
+
+    private void allNotesOff() {
+        for (int channel = 0; channel < 16; channel++) {
+            this.synthesizer.send(ShortMessage.CONTROL_CHANGE | channel, 123, 0);
+        }
+    }
+
+    /**
+     * Dispatches every event that is due
+     */
+    void pump() {
+        synchronized (this) {
+            if (!this.running) return;
+            final PackedSequence sequence = this.sequence;
+            final long micros = currentMicros();
+            final long tick = sequence.microsToTick(micros);
+            final int size = sequence.size();
+            final boolean muted = this.muted;
+            while (this.cursor < size) {
+                final long event = sequence.event(this.cursor);
+                if (PackedSequence.tick(event) > tick) break;
+                this.cursor++;
+                if (PackedSequence.isExtended(event)) {
+                    dispatchExtended(sequence.extendedMessage(this.extendedCursor++), muted);
+                } else if (!muted) {
+                    this.synthesizer.send(PackedSequence.status(event), PackedSequence.data1(event), PackedSequence.data2(event));
+                }
+            }
+            final LongConsumer positionListener = this.positionListener;
+            if (positionListener != null) {
+                positionListener.accept(micros);
+            }
+            if (this.cursor >= size && micros >= sequence.getMicrosecondLength()) {
+                stop();
+            }
+        }
+    }
+
+    private void dispatchExtended(MidiMessage message, boolean muted) {
+        if (message instanceof MetaMessage metaMessage) {
+            if (this.metaEventListener != null) {
+                this.metaEventListener.meta(metaMessage);
+            }
+        } else if (!muted) {
+            this.synthesizer.send(message, -1L);
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.ishland.vanillamelody.common.playback.sequencer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.PriorityQueue;
+
+/**
+ * A time-ordered, track-merged view of a midi sequence
+ * <p>
+ * Every event is packed into a single long: the upper 40 bits hold the tick, the lower 24 bits hold
+ * status, data1 and data2. Events with a status of 0xF0 or above (sysex and meta events) only keep
+ * their status byte in the packed form, the message itself lives in a side table in event order.
+ */
+public final class PackedSequence {
+
+    private static final int DEFAULT_TEMPO_MPQ = 500_000;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_TEMPO = 0x51;
+
+    public static long pack(long tick, int status, int data1, int data2) {
+        return (tick << 24) | ((status & 0xFF) << 16) | ((data1 & 0xFF) << 8) | (data2 & 0xFF);
+    }
+
+    public static long tick(long event) {
+        return event >>> 24;
+    }
+
+    public static int status(long event) {
+        return (int) (event >>> 16) & 0xFF;
+    }
+
+    public static int data1(long event) {
+        return (int) (event >>> 8) & 0xFF;
+    }
+
+    public static int data2(long event) {
+        return (int) event & 0xFF;
+    }
+
+    public static boolean isExtended(long event) {
+        return status(event) >= 0xF0;
+    }
+
+    private final float divisionType;
+    private final int resolution;
+    private final long[] events;
+    private final MidiMessage[] extendedMessages;
+    private final long tickLength;
+
+    // tempo map, only used for PPQ sequences
+    private final long[] tempoTicks;
+    private final long[] tempoMicros;
+    private final int[] tempoMpq;
+
+    private final long microsecondLength;
+
+    PackedSequence(float divisionType, int resolution, long[] events, MidiMessage[] extendedMessages, long tickLength, long[] tempoTicks, long[] tempoMicros, int[] tempoMpq) {
+        this.divisionType = divisionType;
+        this.resolution = resolution;
+        this.events = events;
+        this.extendedMessages = extendedMessages;
+        this.tickLength = tickLength;
+        this.tempoTicks = tempoTicks;
+        this.tempoMicros = tempoMicros;
+        this.tempoMpq = tempoMpq;
+        this.microsecondLength = tickToMicros(tickLength);
+    }
+
+    public static PackedSequence of(Sequence sequence) {
+        final Track[] tracks = sequence.getTracks();
+        int total = 0;
+        for (Track track : tracks) total += track.size();
+
+        final Builder builder = new Builder(sequence.getDivisionType(), sequence.getResolution(), total);
+
+        // merge tracks by tick, ties are resolved by track order
+        final PriorityQueue<TrackCursor> queue = new PriorityQueue<>();
+        for (int i = 0; i < tracks.length; i++) {
+            if (tracks[i].size() > 0) queue.add(new TrackCursor(tracks[i], i));
+        }
+        TrackCursor cursor;
+        while ((cursor = queue.poll()) != null) {
+            final MidiEvent event = cursor.track.get(cursor.index);
+            builder.add(event.getTick(), event.getMessage());
+            if (++cursor.index < cursor.track.size()) queue.add(cursor);
+        }
+
+        return builder.build(sequence.getTickLength());
+    }
+
+    public float getDivisionType() {
+        return divisionType;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public int size() {
+        return events.length;
+    }
+
+    public long event(int index) {
+        return events[index];
+    }
+
+    public MidiMessage extendedMessage(int index) {
+        return extendedMessages[index];
+    }
+
+    public int extendedCount() {
+        return extendedMessages.length;
+    }
+
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    public long getMicrosecondLength() {
+        return microsecondLength;
+    }
+
+    /**
+     * @return index of the first event at or after the given tick
+     */
+    public int firstEventAtOrAfter(long tick) {
+        int low = 0;
+        int high = events.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (tick(events[mid]) < tick) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public long tickToMicros(long tick) {
+        if (divisionType != Sequence.PPQ) {
+            return (long) (tick * 1_000_000.0 / (divisionType * resolution));
+        }
+        final int i = findTempo(tempoTicks, tick);
+        return tempoMicros[i] + (tick - tempoTicks[i]) * tempoMpq[i] / resolution;
+    }
+
+    public long microsToTick(long micros) {
+        if (divisionType != Sequence.PPQ) {
+            return (long) (micros * (divisionType * resolution) / 1_000_000.0);
+        }
+        final int i = findTempo(tempoMicros, micros);
+        return tempoTicks[i] + (micros - tempoMicros[i]) * resolution / tempoMpq[i];
+    }
+
+    private static int findTempo(long[] positions, long position) {
+        int low = 0;
+        int high = positions.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (positions[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static final class TrackCursor implements Comparable<TrackCursor> {
+
+        private final Track track;
+        private final int trackIndex;
+        private int index = 0;
+
+        private TrackCursor(Track track, int trackIndex) {
+            this.track = track;
+            this.trackIndex = trackIndex;
+        }
+
+        private long tick() {
+            return track.get(index).getTick();
+        }
+
+        @Override
+        public int compareTo(TrackCursor o) {
+            final int compare = Long.compare(this.tick(), o.tick());
+            return compare != 0 ? compare : Integer.compare(this.trackIndex, o.trackIndex);
+        }
+    }
+
+    /**
+     * Collects already time-ordered events into a {@link PackedSequence}
+     */
+    static final class Builder {
+
+        private final float divisionType;
+        private final int resolution;
+        private final LongArrayList events;
+        private final ReferenceArrayList<MidiMessage> extendedMessages = new ReferenceArrayList<>();
+
+        private final LongArrayList tempoTicks = new LongArrayList();
+        private final LongArrayList tempoMicros = new LongArrayList();
+        private final IntArrayList tempoMpq = new IntArrayList();
+
+        Builder(float divisionType, int resolution, int expectedSize) {
+            this.divisionType = divisionType;
+            this.resolution = resolution;
+            this.events = new LongArrayList(expectedSize);
+            this.tempoTicks.add(0L);
+            this.tempoMicros.add(0L);
+            this.tempoMpq.add(DEFAULT_TEMPO_MPQ);
+        }
+
+        void add(long tick, MidiMessage message) {
+            if (message instanceof ShortMessage shortMessage && shortMessage.getStatus() < 0xF0) {
+                addShort(tick, shortMessage.getStatus(), shortMessage.getData1(), shortMessage.getData2());
+                return;
+            }
+            if (message instanceof MetaMessage metaMessage) {
+                if (metaMessage.getType() == META_END_OF_TRACK) return;
+                if (metaMessage.getType() == META_TEMPO) {
+                    final byte[] data = metaMessage.getData();
+                    if (data.length >= 3) {
+                        tempoChange(tick, ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF));
+                    }
+                }
+            }
+            events.add(pack(tick, message.getStatus(), 0, 0));
+            extendedMessages.add(message);
+        }
+
+        void addShort(long tick, int status, int data1, int data2) {
+            events.add(pack(tick, status, data1, data2));
+        }
+
+        void tempoChange(long tick, int mpq) {
+            if (mpq <= 0) return;
+            final int last = tempoTicks.size() - 1;
+            final long lastTick = tempoTicks.getLong(last);
+            final long micros = tempoMicros.getLong(last) + (tick - lastTick) * tempoMpq.getInt(last) / resolution;
+            if (lastTick == tick) {
+                tempoMpq.set(last, mpq);
+            } else {
+                tempoTicks.add(tick);
+                tempoMicros.add(micros);
+                tempoMpq.add(mpq);
+            }
+        }
+
+        PackedSequence build(long tickLength) {
+            return new PackedSequence(
+                    divisionType,
+                    resolution,
+                    events.toLongArray(),
+                    extendedMessages.toArray(MidiMessage[]::new),
+                    tickLength,
+                    tempoTicks.toLongArray(),
+                    tempoMicros.toLongArray(),
+                    tempoMpq.toIntArray()
+            );
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.ishland.vanillamelody.common.playback.sequencer;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.SysexMessage;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Standard midi file parser decoding straight into a {@link PackedSequence}
+ * <p>
+ * Channel messages never become {@link MidiMessage} objects, each track is decoded into packed longs
+ * and the tracks are merged into a single time-ordered stream.
+ */
+public class StandardMidiFileParser {
+
+    private static final int MThd = 0x4D546864;
+    private static final int MTrk = 0x4D54726B;
+
+    public static PackedSequence parse(byte[] bytes) throws InvalidMidiDataException {
+        final Reader reader = new Reader(bytes, 0, bytes.length);
+        if (reader.remaining() < 14 || reader.readInt() != MThd) {
+            throw new InvalidMidiDataException("Not a standard midi file");
+        }
+        final int headerLength = reader.readInt();
+        if (headerLength < 6 || headerLength > reader.remaining()) {
+            throw new InvalidMidiDataException("Invalid header length: " + headerLength);
+        }
+        final int headerEnd = reader.position + headerLength;
+        reader.readShort(); // format, all formats are merged the same way
+        final int trackCount = reader.readShort();
+        final int division = reader.readShort();
+        reader.position = headerEnd;
+
+        final float divisionType;
+        final int resolution;
+        if ((division & 0x8000) != 0) {
+            final int frames = -(byte) (division >> 8);
+            divisionType = switch (frames) {
+                case 24 -> Sequence.SMPTE_24;
+                case 25 -> Sequence.SMPTE_25;
+                case 29 -> Sequence.SMPTE_30DROP;
+                case 30 -> Sequence.SMPTE_30;
+                default -> throw new InvalidMidiDataException("Unknown SMPTE frame rate: " + frames);
+            };
+            resolution = division & 0xFF;
+        } else {
+            divisionType = Sequence.PPQ;
+            resolution = division;
+        }
+        if (resolution <= 0) {
+            throw new InvalidMidiDataException("Invalid resolution: " + resolution);
+        }
+
+        final ReferenceArrayList<TrackData> tracks = new ReferenceArrayList<>(trackCount);
+        while (tracks.size() < trackCount && reader.remaining() >= 8) {
+            final int type = reader.readInt();
+            final int length = reader.readInt();
+            if (length < 0 || length > reader.remaining()) {
+                throw new InvalidMidiDataException("Truncated chunk");
+            }
+            if (type == MTrk) {
+                tracks.add(parseTrack(new Reader(bytes, reader.position, reader.position + length), tracks.size()));
+            }
+            reader.position += length;
+        }
+
+        int total = 0;
+        long tickLength = 0L;
+        for (TrackData track : tracks) {
+            total += track.events.length;
+            tickLength = Math.max(tickLength, track.endTick);
+        }
+
+        final PackedSequence.Builder builder = new PackedSequence.Builder(divisionType, resolution, total);
+
+        // merge tracks by tick, ties are resolved by track order
+        final PriorityQueue<TrackData> queue = new PriorityQueue<>();
+        for (TrackData track : tracks) {
+            if (track.events.length > 0) queue.add(track);
+        }
+        TrackData track;
+        while ((track = queue.poll()) != null) {
+            final long event = track.events[track.index];
+            if (PackedSequence.isExtended(event)) {
+                builder.add(PackedSequence.tick(event), track.extendedMessages[track.extendedIndex++]);
+            } else {
+                builder.addShort(PackedSequence.tick(event), PackedSequence.status(event), PackedSequence.data1(event), PackedSequence.data2(event));
+            }
+            if (++track.index < track.events.length) queue.add(track);
+        }
+
+        return builder.build(tickLength);
+    }
+
+    private static TrackData parseTrack(Reader reader, int trackIndex) throws InvalidMidiDataException {
+        final LongArrayList events = new LongArrayList(reader.remaining() / 3);
+        final ReferenceArrayList<MidiMessage> extendedMessages = new ReferenceArrayList<>();
+        long tick = 0L;
+        int runningStatus = -1;
+        while (reader.remaining() > 0) {
+            tick += reader.readVarInt();
+            int status = reader.readByte();
+            if (status < 0x80) {
+                if (runningStatus < 0) {
+                    throw new InvalidMidiDataException("Data byte without running status");
+                }
+                reader.position--;
+                status = runningStatus;
+            }
+            if (status < 0xF0) {
+                // kept across meta and sysex events instead of failing the song, files in the wild rely on it
+                runningStatus = status;
+                final int command = status & 0xF0;
+                final int data1 = reader.readByte();
+                final int data2 = command == 0xC0 || command == 0xD0 ? 0 : reader.readByte();
+                events.add(PackedSequence.pack(tick, status, data1, data2));
+            } else if (status == 0xFF) {
+                final int type = reader.readByte();
+                final byte[] data = reader.readBytes(reader.readVarInt());
+                if (type == 0x2F) break; // end of track
+                events.add(PackedSequence.pack(tick, status, 0, 0));
+                extendedMessages.add(new MetaMessage(type, data, data.length));
+            } else if (status == 0xF0 || status == 0xF7) {
+                final byte[] data = reader.readBytes(reader.readVarInt());
+                events.add(PackedSequence.pack(tick, status, 0, 0));
+                extendedMessages.add(new SysexMessage(status, data, data.length));
+            } else {
+                throw new InvalidMidiDataException("Invalid status byte: " + status);
+            }
+        }
+        return new TrackData(events.toLongArray(), extendedMessages.toArray(MidiMessage[]::new), tick, trackIndex);
+    }
+
+    private static final class TrackData implements Comparable<TrackData> {
+
+        private final long[] events;
+        private final MidiMessage[] extendedMessages;
+        private final long endTick;
+        private final int trackIndex;
+        private int index = 0;
+        private int extendedIndex = 0;
+
+        private TrackData(long[] events, MidiMessage[] extendedMessages, long endTick, int trackIndex) {
+            this.events = events;
+            this.extendedMessages = extendedMessages;
+            this.endTick = endTick;
+            this.trackIndex = trackIndex;
+        }
+
+        @Override
+        public int compareTo(TrackData o) {
+            final int compare = Long.compare(PackedSequence.tick(this.events[this.index]), PackedSequence.tick(o.events[o.index]));
+            return compare != 0 ? compare : Integer.compare(this.trackIndex, o.trackIndex);
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        private Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        private int remaining() {
+            return end - position;
+        }
+
+        private int readByte() throws InvalidMidiDataException {
+            if (position >= end) throw new InvalidMidiDataException("Unexpected end of data");
+            return bytes[position++] & 0xFF;
+        }
+
+        private int readShort() throws InvalidMidiDataException {
+            return (readByte() << 8) | readByte();
+        }
+
+        private int readInt() throws InvalidMidiDataException {
+            return (readShort() << 16) | readShort();
+        }
+
+        private int readVarInt() throws InvalidMidiDataException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                final int b = readByte();
+                value = (value << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new InvalidMidiDataException("Variable length quantity too long");
+        }
+
+        private byte[] readBytes(int length) throws InvalidMidiDataException {
+            if (length > remaining()) throw new InvalidMidiDataException("Unexpected end of data");
+            final byte[] data = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return data;
+        }
+    }
+
+}
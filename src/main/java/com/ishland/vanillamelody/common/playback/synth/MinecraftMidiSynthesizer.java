@@ -1,27 +1,28 @@
 package com.ishland.vanillamelody.common.playback.synth;
 
-import com.google.common.collect.Sets;
+import com.ishland.vanillamelody.common.playback.NoteUtil;
 import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
-import com.ishland.vanillamelody.common.playback.data.Note;
 import com.ishland.vanillamelody.common.playback.data.SoftTuning;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceFunction;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
+import net.minecraft.util.Identifier;
 
-import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.SysexMessage;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.Optional;
-import java.util.Set;
 
 public class MinecraftMidiSynthesizer implements Receiver {
 
     public static final boolean DEBUG = false;
 
+    /**
+     * Voice handle of notes that are never cut off
+     */
+    public static final long NO_VOICE = -1L;
+
     private static int restrict7Bit(int value) {
         if (value < 0) return 0;
         return Math.min(value, 127);
@@ -58,10 +59,14 @@ public class MinecraftMidiSynthesizer implements Receiver {
     private final byte[] channelVolumes = new byte[16];
     private final byte[] channelExpression = new byte[16];
     private final byte[] channelPan = new byte[16];
-    @SuppressWarnings("unchecked")
-    private final Set<SimpleNote>[] runningNotes = new Set[16];
-    @SuppressWarnings("unchecked")
-    private final Set<SimpleNote>[] pendingOffNotes = new Set[16];
+    // per-channel 128-bit key sets, two longs per channel
+    // like all other channel state, only touched while holding this synthesizer's monitor:
+    // messages arrive on the sequencer driver thread while tick() runs on the player's scheduler
+    private final long[] runningNotes = new long[16 * 2];
+    private final long[] pendingOffNotes = new long[16 * 2];
+
+    // one reusable voice per channel and key, handed out to receivers as generation-tagged handles
+    private final SimpleNote[][] voices = new SimpleNote[16][128];
 
     private final boolean[] holdPedal = new boolean[16];
 
@@ -69,6 +74,7 @@ public class MinecraftMidiSynthesizer implements Receiver {
     private boolean isCh10Percussion = false;
 
     private long tickCount = 0L;
+    private boolean sustainedVoices = false;
 
     {
         reset(false);
@@ -76,9 +82,73 @@ public class MinecraftMidiSynthesizer implements Receiver {
 
     public MinecraftMidiSynthesizer(NoteReceiver noteReceiver) {
         this.noteReceiver = noteReceiver;
+        for (int channel = 0; channel < voices.length; channel++) {
+            for (int key = 0; key < voices[channel].length; key++) {
+                voices[channel][key] = new SimpleNote(channel, key);
+            }
+        }
+    }
+
+    /**
+     * @param voice voice handle passed to {@link NoteReceiver}
+     * @return whether the note has been released
+     */
+    public boolean isVoiceDone(long voice) {
+        if (voice == NO_VOICE) return false;
+        return voiceOf(voice).releasedGeneration >= (int) (voice >>> 11);
+    }
+
+    /**
+     * Lets long sounds be played as one sustained sound per held note instead of being retriggered every tick
+     * <p>
+     * The receiver is then expected to loop the sound and follow {@link #getVoiceVolume(long)},
+     * {@link #getVoiceRawPitch(long)} and {@link #getVoicePanning(long)} until the voice is done.
+     */
+    public void setSustainedVoices(boolean sustainedVoices) {
+        this.sustainedVoices = sustainedVoices;
+    }
+
+    private SimpleNote voiceOf(long voice) {
+        final int index = (int) (voice & 0x7FF);
+        return voices[index >>> 7][index & 0x7F];
+    }
+
+    /**
+     * @param voice voice handle passed to {@link NoteReceiver}
+     * @return whether the note is a long sound held by a single sustained sound
+     */
+    public boolean isSustainedVoice(long voice) {
+        if (voice == NO_VOICE) return false;
+        final SimpleNote note = voiceOf(voice);
+        return note.sustained && note.generation == (int) (voice >>> 11);
+    }
+
+    /**
+     * Current volume of a sustained voice, following velocity, pressure, volume and expression changes
+     */
+    public float getVoiceVolume(long voice) {
+        return voiceOf(voice).currentVolume;
+    }
+
+    /**
+     * Current pitch of a sustained voice relative to the base octave sound, following pitch bends
+     */
+    public float getVoiceRawPitch(long voice) {
+        return voiceOf(voice).currentRawPitch;
+    }
+
+    public int getVoicePanning(long voice) {
+        return voiceOf(voice).currentPanning;
     }
 
-    public void reset(boolean full) {
+    /**
+     * @return time in millis the synthesizer last updated a sustained voice
+     */
+    public long getVoiceUpdateTime(long voice) {
+        return voiceOf(voice).lastUpdate;
+    }
+
+    public synchronized void reset(boolean full) {
         if (full) {
             this.generalMidiMode = 0;
             this.isCh10Percussion = false;
@@ -118,12 +188,11 @@ public class MinecraftMidiSynthesizer implements Receiver {
         Arrays.fill(channelVolumes, (byte) 127);
         Arrays.fill(channelExpression, (byte) 127);
         Arrays.fill(channelPan, (byte) 64);
-        for (int i = 0, runningNotesLength = runningNotes.length; i < runningNotesLength; i++) {
-            runningNotes[i] = Sets.newConcurrentHashSet();
-        }
-        for (int i = 0, runningNotesLength = pendingOffNotes.length; i < runningNotesLength; i++) {
-            pendingOffNotes[i] = Sets.newConcurrentHashSet();
+        // release held voices so that their sounds end
+        for (int channel = 0; channel < 16; channel++) {
+            releaseAll(runningNotes, channel);
         }
+        Arrays.fill(pendingOffNotes, 0L);
         resetControllers();
     }
 
@@ -148,46 +217,10 @@ public class MinecraftMidiSynthesizer implements Receiver {
     }
 
     @Override
-    public void send(MidiMessage midiMessage, long l) {
+    public synchronized void send(MidiMessage midiMessage, long l) {
         try {
-            if (midiMessage instanceof ShortMessage) {
-                ShortMessage shortMessage = (ShortMessage) midiMessage.clone();
-                if (shortMessage.getCommand() == ShortMessage.NOTE_ON && shortMessage.getData2() == 0) {
-                    try {
-                        shortMessage.setMessage(ShortMessage.NOTE_OFF, shortMessage.getData1(), 64);
-                    } catch (InvalidMidiDataException e) {
-                        e.printStackTrace();
-                    }
-                }
-                switch (shortMessage.getCommand()) {
-                    case ShortMessage.NOTE_ON:
-                        noteOn(shortMessage);
-                        break;
-                    case ShortMessage.NOTE_OFF:
-                        noteOff(shortMessage);
-                        break;
-                    case ShortMessage.PROGRAM_CHANGE:
-                        programChange(shortMessage);
-                        break;
-                    case ShortMessage.PITCH_BEND:
-                        pitchBend(shortMessage);
-                        break;
-                    case ShortMessage.POLY_PRESSURE:
-                        polyPressure(shortMessage);
-                        break;
-                    case ShortMessage.CHANNEL_PRESSURE:
-                        channelPressure(shortMessage);
-                        break;
-                    case ShortMessage.SYSTEM_RESET:
-                        reset(false);
-                        break;
-                    case ShortMessage.CONTROL_CHANGE:
-                        controlChange(shortMessage);
-                        break;
-                    default:
-                        System.out.println(shortMessage.getCommand());
-                }
-
+            if (midiMessage instanceof ShortMessage shortMessage) {
+                send(shortMessage.getStatus(), shortMessage.getData1(), shortMessage.getData2());
             } else //noinspection StatementWithEmptyBody
                 if (midiMessage instanceof SysexMessage sysexMessage) {
                     sysexMessage(sysexMessage);
@@ -197,6 +230,54 @@ public class MinecraftMidiSynthesizer implements Receiver {
         }
     }
 
+    /**
+     * Sends a short message without wrapping it into a {@link ShortMessage}
+     *
+     * @param status status byte, including the channel
+     * @param data1 first data byte
+     * @param data2 second data byte, 0 if unused
+     */
+    public synchronized void send(int status, int data1, int data2) {
+        try {
+            final int channel = status & 0x0F;
+            int command = status < 0xF0 ? status & 0xF0 : status;
+            if (command == ShortMessage.NOTE_ON && data2 == 0) {
+                command = ShortMessage.NOTE_OFF;
+                data2 = 64;
+            }
+            switch (command) {
+                case ShortMessage.NOTE_ON:
+                    noteOn(channel, data1, data2);
+                    break;
+                case ShortMessage.NOTE_OFF:
+                    noteOff(data1);
+                    break;
+                case ShortMessage.PROGRAM_CHANGE:
+                    programChange(channel, data1);
+                    break;
+                case ShortMessage.PITCH_BEND:
+                    pitchBend(channel, data1, data2);
+                    break;
+                case ShortMessage.POLY_PRESSURE:
+                    polyPressure(channel, data1, data2);
+                    break;
+                case ShortMessage.CHANNEL_PRESSURE:
+                    channelPressure(channel, data1);
+                    break;
+                case ShortMessage.SYSTEM_RESET:
+                    reset(false);
+                    break;
+                case ShortMessage.CONTROL_CHANGE:
+                    controlChange(channel, data1, data2);
+                    break;
+                default:
+                    System.out.println(command);
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
     private void sysexMessage(SysexMessage sysexMessage) {
         final byte[] originalData = sysexMessage.getData();
         final byte[] data = new byte[originalData.length + 1];
@@ -293,13 +374,7 @@ public class MinecraftMidiSynthesizer implements Receiver {
                                 // http://www.midi.org/about-midi/tuning.shtml
                                 SoftTuning tuning = tuningBank.computeIfAbsent(getPatchIndex(0, data[5] & 0xFF), NEW_TUNING_BANK);
                                 tuning.load(data);
-                                for (Set<SimpleNote> simpleNotes : runningNotes) {
-                                    for (SimpleNote simpleNote : simpleNotes) {
-                                        if (simpleNote.tuning == tuning) {
-                                            simpleNote.pitchOffset = (float) ((tuning.getTuning(simpleNote.note) / 100.0) - simpleNote.note);
-                                        }
-                                    }
-                                }
+                                updateRunningTunings(tuning, false);
 
                                 break;
                             }
@@ -309,13 +384,7 @@ public class MinecraftMidiSynthesizer implements Receiver {
                                 // http://www.midi.org/about-midi/tuning_extens.shtml
                                 SoftTuning tuning = tuningBank.computeIfAbsent(getPatchIndex(data[5] & 0xFF, data[6] & 0xFF), NEW_TUNING_BANK);
                                 tuning.load(data);
-                                for (Set<SimpleNote> simpleNotes : runningNotes) {
-                                    for (SimpleNote simpleNote : simpleNotes) {
-                                        if (simpleNote.tuning == tuning) {
-                                            simpleNote.pitchOffset = (float) ((tuning.getTuning(simpleNote.note) / 100.0) - simpleNote.note);
-                                        }
-                                    }
-                                }
+                                updateRunningTunings(tuning, false);
                                 break;
                             }
                             case 0x08:  // scale/octave tuning 1-byte form
@@ -330,11 +399,7 @@ public class MinecraftMidiSynthesizer implements Receiver {
                                 for (int i = 0; i < channelTunings.length; i++)
                                     if ((channelmask & (1 << i)) != 0)
                                         channelTunings[i] = tuning;
-                                for (Set<SimpleNote> simpleNotes : runningNotes) {
-                                    for (SimpleNote simpleNote : simpleNotes) {
-                                        simpleNote.pitchOffset = (float) ((tuning.getTuning(simpleNote.note) / 100.0) - simpleNote.note);
-                                    }
-                                }
+                                updateRunningTunings(tuning, true);
                                 break;
                             }
                             default:
@@ -356,11 +421,45 @@ public class MinecraftMidiSynthesizer implements Receiver {
         }
     }
 
-    private void controlChange(ShortMessage shortMessage) {
-        final int controller = shortMessage.getData1();
-        final int value = shortMessage.getData2();
-        final int channel = shortMessage.getChannel();
-        controlChange(channel, controller, value);
+    private void updateRunningTunings(SoftTuning tuning, boolean allNotes) {
+        for (int channel = 0; channel < 16; channel++) {
+            for (int word = 0; word < 2; word++) {
+                long bits = runningNotes[channel * 2 + word];
+                while (bits != 0L) {
+                    final SimpleNote simpleNote = voices[channel][(word << 6) | Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                    if (allNotes || simpleNote.tuning == tuning) {
+                        simpleNote.pitchOffset = (float) ((tuning.getTuning(simpleNote.note) / 100.0) - simpleNote.note);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean contains(long[] keys, int channel, int key) {
+        return (keys[channel * 2 + (key >>> 6)] & (1L << key)) != 0L;
+    }
+
+    private static void add(long[] keys, int channel, int key) {
+        keys[channel * 2 + (key >>> 6)] |= 1L << key;
+    }
+
+    private static void remove(long[] keys, int channel, int key) {
+        keys[channel * 2 + (key >>> 6)] &= ~(1L << key);
+    }
+
+    private void releaseAll(long[] keys, int channel) {
+        for (int word = 0; word < 2; word++) {
+            final int index = channel * 2 + word;
+            long bits = keys[index];
+            while (bits != 0L) {
+                final int key = (word << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                voices[channel][key].release();
+                remove(runningNotes, channel, key);
+            }
+            keys[index] = 0L;
+        }
     }
 
     private void controlChange(int channel, int controller, int value) {
@@ -532,10 +631,7 @@ public class MinecraftMidiSynthesizer implements Receiver {
 //                pendingOffNotes[channel].add(note);
 //        } else {
 //        }
-        for (SimpleNote note : runningNotes[channel]) {
-            note.isDone = true;
-        }
-        runningNotes[channel].clear();
+        releaseAll(runningNotes, channel);
 
     }
 
@@ -544,18 +640,11 @@ public class MinecraftMidiSynthesizer implements Receiver {
             System.out.println("[%2d] Hold Pedal: %s".formatted(channel, holdPedal[channel]));
         }
         if (!holdPedal[channel]) {
-            for (Iterator<SimpleNote> iterator = pendingOffNotes[channel].iterator(); iterator.hasNext(); ) {
-                SimpleNote note = iterator.next();
-                note.isDone = true;
-                runningNotes[channel].remove(note);
-                iterator.remove();
-            }
+            releaseAll(pendingOffNotes, channel);
         }
     }
 
-    private void noteOff(ShortMessage shortMessage) {
-//        final int channel = shortMessage.getChannel();
-        final int noteId = shortMessage.getData1();
+    private void noteOff(int noteId) {
 //        if (channel == 0) {
             for (int i = 0; i <= 15; i ++) {
                 noteOff0(i, noteId);
@@ -566,71 +655,67 @@ public class MinecraftMidiSynthesizer implements Receiver {
     }
 
     private void noteOff0(int channel, int noteId) {
-        final Optional<SimpleNote> found = runningNotes[channel].stream().filter(simpleNote -> simpleNote.note == noteId).findFirst();
-        if (found.isEmpty()) return;
-        final SimpleNote note = found.get();
+        if (!contains(runningNotes, channel, noteId)) return;
         if (holdPedal[channel]) {
-            pendingOffNotes[channel].add(note);
+            add(pendingOffNotes, channel, noteId);
         } else {
-            note.isDone = true;
-            runningNotes[channel].remove(note);
+            voices[channel][noteId].release();
+            remove(runningNotes, channel, noteId);
         }
     }
 
-    public void channelPressure(ShortMessage shortMessage) {
-        if (shortMessage.getData1() == 0) return;
-        channelPressures[shortMessage.getChannel()] = (byte) shortMessage.getData1();
+    public void channelPressure(int channel, int pressure) {
+        if (pressure == 0) return;
+        channelPressures[channel] = (byte) pressure;
     }
 
-    public void polyPressure(ShortMessage shortMessage) {
-        channelPolyPressures[shortMessage.getChannel()][shortMessage.getData1()] = (byte) shortMessage.getData2();
+    public void polyPressure(int channel, int key, int pressure) {
+        channelPolyPressures[channel][key] = (byte) pressure;
     }
 
-    public void pitchBend(ShortMessage shortMessage) {
-        channelPitchBends[shortMessage.getChannel()] = (short) ((shortMessage.getData1() + shortMessage.getData2() * 128) - 8192);
+    public void pitchBend(int channel, int lsb, int msb) {
+        channelPitchBends[channel] = (short) ((lsb + msb * 128) - 8192);
     }
 
-    public void programChange(ShortMessage shortMessage) {
+    public void programChange(int channel, int program) {
         if (DEBUG) {
-            System.out.println("[%2d] Program change: %d".formatted(shortMessage.getChannel(), shortMessage.getData1()));
+            System.out.println("[%2d] Program change: %d".formatted(channel, program));
         }
-//        channelPrograms[shortMessage.getChannel()] = MidiInstruments.instrumentMapping.get(shortMessage.getData1());
-        channelProgramsNum[shortMessage.getChannel()] = shortMessage.getData1();
-        Arrays.fill(channelPolyPressures[shortMessage.getChannel()], (byte) 127);
-        runningNotes[shortMessage.getChannel()].clear();
+//        channelPrograms[channel] = MidiInstruments.instrumentMapping.get(program);
+        channelProgramsNum[channel] = program;
+        Arrays.fill(channelPolyPressures[channel], (byte) 127);
+        releaseAll(runningNotes, channel);
     }
 
-    public void noteOn(ShortMessage shortMessage) {
-//        if (shortMessage.getChannel() != 4 && shortMessage.getChannel() != 9) return;
-        final Note note;
-        if (shortMessage.getChannel() == 9 || (isCh10Percussion && shortMessage.getChannel() == 10)) {
-            final MidiInstruments.MidiPercussion percussion = percussionBank.get(shortMessage.getData1());
+    public void noteOn(int channel, int key, int velocity) {
+//        if (channel != 4 && channel != 9) return;
+        if (channel == 9 || (isCh10Percussion && channel == 10)) {
+            final MidiInstruments.MidiPercussion percussion = percussionBank.get(key);
             if (percussion == null) return;
-            note = new Note(
+            playNote(
                     (byte) percussion.mcInstrument,
                     (short) percussion.midiKey,
-                    getNoteVolume(shortMessage.getData2(), shortMessage.getChannel(), shortMessage.getData1()),
-                    channelPan[shortMessage.getChannel()] - 64,
-                    (short) 0);
-            playNote(note, null, false);
+                    getNoteVolume(velocity, channel, key),
+                    channelPan[channel] - 64,
+                    (short) 0,
+                    NO_VOICE,
+                    Long.MAX_VALUE);
         } else {
-            final MidiInstruments.MidiInstrument channelProgram = instrumentBank.get(channelProgramsNum[shortMessage.getChannel()]);
+            final MidiInstruments.MidiInstrument channelProgram = instrumentBank.get(channelProgramsNum[channel]);
             if (channelProgram == null) return;
-            final short key = (short) (shortMessage.getData1() + (channelProgram.octaveModifier * 12));
-            final SoftTuning tuning = channelTunings[shortMessage.getChannel()];
-            final SimpleNote simpleNote = new SimpleNote(shortMessage.getData1(), shortMessage.getData2(), tuning, channelProgram.isLongSound);
-            note = new Note(
+            final short mcKey = (short) (key + (channelProgram.octaveModifier * 12));
+            final SimpleNote simpleNote = voices[channel][key];
+            simpleNote.start(velocity, channelTunings[channel], channelProgram.isLongSound, sustainedVoices && channelProgram.isLongSound);
+            add(runningNotes, channel, key);
+            if (simpleNote.sustained) updateSustained(simpleNote, channelProgram);
+            playNote(
                     (byte) channelProgram.mcInstrument,
-                    key,
-                    getNoteVolume(shortMessage.getData2(), shortMessage.getChannel(), shortMessage.getData1()),
-                    channelPan[shortMessage.getChannel()] - 64,
-                    (short) ((channelPitchBends[shortMessage.getChannel()] / 4096.0 + simpleNote.pitchOffset) * 100));
-//            System.out.println(shortMessage.getChannel());
-//            System.out.println(channelProgramsNum[shortMessage.getChannel()]);
-//            System.out.println(note);
-            runningNotes[shortMessage.getChannel()].remove(simpleNote);
-            runningNotes[shortMessage.getChannel()].add(simpleNote);
-            playNote(note, simpleNote, false);
+                    mcKey,
+                    getNoteVolume(velocity, channel, key),
+                    channelPan[channel] - 64,
+                    (short) ((channelPitchBends[channel] / 4096.0 + simpleNote.pitchOffset) * 100),
+                    simpleNote.handle(),
+                    Long.MAX_VALUE);
         }
     }
 
@@ -644,15 +729,11 @@ public class MinecraftMidiSynthesizer implements Receiver {
         );
     }
 
-    private void playNote(Note note, SimpleNote simpleNote, boolean isRepeatingLongSound) {
-        if (isRepeatingLongSound && simpleNote != null) {
-            long playableUntil = System.currentTimeMillis() + 800L;
-            noteReceiver.playNote(note, () -> simpleNote.isDone || System.currentTimeMillis() > playableUntil);
-        } else if (simpleNote == null) {
-            noteReceiver.playNote(note, () -> false);
-        } else {
-            noteReceiver.playNote(note, () -> simpleNote.isDone);
-        }
+    private void playNote(byte mcInstrument, short key, float volume, int panning, short pitch, long voice, long playableUntil) {
+        final Identifier sound = NoteUtil.getSoundId(mcInstrument, key, pitch);
+        final float pitchInOctave = NoteUtil.getPitchInOctave(key, pitch);
+        final float pitchOnBase = NoteUtil.getPitchOnBaseOctave(key, pitch);
+        noteReceiver.playNote(this, sound, mcInstrument, volume, panning, pitchInOctave, pitchOnBase, voice, playableUntil);
     }
 
     private float keyVelocityModifier(short key) {
@@ -664,57 +745,91 @@ public class MinecraftMidiSynthesizer implements Receiver {
 
     }
 
-    public void tick() {
+    public synchronized void tick() {
         final long currentTick = tickCount++;
-        for (int channel = 0, runningNotesLength = runningNotes.length; channel < runningNotesLength; channel++) {
-            Set<SimpleNote> channelRunningNotes = runningNotes[channel];
-            for (SimpleNote note : channelRunningNotes) {
-                if (!note.isLongSound) continue;
-                final MidiInstruments.MidiInstrument channelProgram = instrumentBank.get(channelProgramsNum[channel]);
-                if (channelProgram == null) continue;
-                final short key = (short) (note.note + (channelProgram.octaveModifier * 12));
-                final Note resultNote = new Note(
-                        (byte) channelProgram.mcInstrument,
-                        key,
-                        (float) (getNoteVolume(note.velocity, channel, note.note) * 0.75),
-                        channelPan[channel] - 64,
-                        (short) ((channelPitchBends[channel] / 4096.0 + note.pitchOffset) * 100));
-                if (currentTick % Math.max(1, Math.round(1 / resultNote.rawPitch())) == 0)
-                    playNote(resultNote, note, true);
+        for (int channel = 0; channel < 16; channel++) {
+            if ((runningNotes[channel * 2] | runningNotes[channel * 2 + 1]) == 0L) continue;
+            final MidiInstruments.MidiInstrument channelProgram = instrumentBank.get(channelProgramsNum[channel]);
+            if (channelProgram == null) continue;
+            for (int word = 0; word < 2; word++) {
+                long bits = runningNotes[channel * 2 + word];
+                while (bits != 0L) {
+                    final SimpleNote note = voices[channel][(word << 6) | Long.numberOfTrailingZeros(bits)];
+                    bits &= bits - 1;
+                    if (!note.isLongSound) continue;
+                    if (note.sustained) {
+                        updateSustained(note, channelProgram);
+                        continue;
+                    }
+                    final short key = (short) (note.note + (channelProgram.octaveModifier * 12));
+                    final short pitch = (short) ((channelPitchBends[channel] / 4096.0 + note.pitchOffset) * 100);
+                    if (currentTick % Math.max(1, Math.round(1 / NoteUtil.getPitchOnBaseOctave(key, pitch))) == 0)
+                        playNote(
+                                (byte) channelProgram.mcInstrument,
+                                key,
+                                (float) (getNoteVolume(note.velocity, channel, note.note) * 0.75),
+                                channelPan[channel] - 64,
+                                pitch,
+                                note.handle(),
+                                System.currentTimeMillis() + 800L);
+                }
             }
-
         }
 
     }
 
+    private void updateSustained(SimpleNote note, MidiInstruments.MidiInstrument channelProgram) {
+        final int channel = note.channel;
+        final short key = (short) (note.note + (channelProgram.octaveModifier * 12));
+        final short pitch = (short) ((channelPitchBends[channel] / 4096.0 + note.pitchOffset) * 100);
+        note.currentVolume = getNoteVolume(note.velocity, channel, note.note);
+        note.currentRawPitch = NoteUtil.getPitchOnBaseOctave(key, pitch);
+        note.currentPanning = channelPan[channel] - 64;
+        note.lastUpdate = System.currentTimeMillis();
+    }
+
     private static class SimpleNote {
 
+        public final int channel;
         public final int note;
-        public final int velocity;
-        public final SoftTuning tuning;
-        public final boolean isLongSound;
+        public int velocity;
+        public SoftTuning tuning;
+        public boolean isLongSound;
         public float pitchOffset;
-        public boolean isDone = false;
-
-        private SimpleNote(int note, int velocity, SoftTuning tuning, boolean isLongSound) {
+        public boolean sustained;
+        // state of a sustained voice, read by its sound on the sound thread
+        public volatile float currentVolume;
+        public volatile float currentRawPitch;
+        public volatile int currentPanning;
+        public volatile long lastUpdate;
+        // every note-on starts a new generation, handles of generations up to this one are done
+        // read without the synthesizer's monitor by sounds on the sound and render threads
+        public volatile int generation = 0;
+        public volatile int releasedGeneration = 0;
+
+        private SimpleNote(int channel, int note) {
+            this.channel = channel;
             this.note = note;
+        }
+
+        private void start(int velocity, SoftTuning tuning, boolean isLongSound, boolean sustained) {
+            // a retriggered held key replaces its sustained sound instead of stacking another one
+            if (sustained || this.sustained) this.releasedGeneration = this.generation;
             this.velocity = velocity;
             this.tuning = tuning;
             this.isLongSound = isLongSound;
+            this.sustained = sustained;
             this.pitchOffset = (float) ((tuning.getTuning(note) / 100.0) - note);
+            // written last, a sound that sees the new generation also sees the fields above
+            this.generation++;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            SimpleNote that = (SimpleNote) o;
-            return note == that.note;
+        private void release() {
+            this.releasedGeneration = this.generation;
         }
 
-        @Override
-        public int hashCode() {
-            return note;
+        private long handle() {
+            return ((long) generation << 11) | ((long) channel << 7) | note;
         }
 
         @Override
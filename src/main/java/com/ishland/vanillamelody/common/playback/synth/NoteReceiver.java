@@ -1,12 +1,34 @@
 package com.ishland.vanillamelody.common.playback.synth;
 
 import com.ishland.vanillamelody.common.playback.data.Note;
+import net.minecraft.util.Identifier;
 
 import java.util.function.BooleanSupplier;
-import java.util.function.Supplier;
 
 public interface NoteReceiver {
 
     void playNote(Note note, BooleanSupplier isDone);
 
+    /**
+     * Allocation-free variant of {@link #playNote(Note, BooleanSupplier)}, called by the synthesizer for every note
+     * <p>
+     * The default implementation boxes the note and forwards it to {@link #playNote(Note, BooleanSupplier)}.
+     *
+     * @param synthesizer the synthesizer emitting the note
+     * @param sound pre-interned warped sound id
+     * @param mcInstrument vanilla instrument ordinal
+     * @param volume volume
+     * @param panning panning
+     * @param pitch pitch within the warped sound
+     * @param rawPitch pitch relative to the base octave sound
+     * @param voice voice handle for {@link MinecraftMidiSynthesizer#isVoiceDone(long)}, or {@link MinecraftMidiSynthesizer#NO_VOICE}
+     * @param playableUntil time in millis after which the note counts as done, {@link Long#MAX_VALUE} if unbounded
+     */
+    default void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+        playNote(
+                new Note(sound.toString(), volume, panning, pitch, rawPitch, mcInstrument),
+                () -> synthesizer.isVoiceDone(voice) || System.currentTimeMillis() > playableUntil
+        );
+    }
+
 }
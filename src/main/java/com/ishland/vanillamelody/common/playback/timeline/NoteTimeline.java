@@ -0,0 +1,106 @@
+package com.ishland.vanillamelody.common.playback.timeline;
+
+import net.minecraft.util.Identifier;
+
+/**
+ * Pre-rendered output of a {@link com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer}
+ * run over a whole song
+ * <p>
+ * Notes are stored as parallel primitive arrays sorted by timestamp, sounds are referenced by their
+ * index into a per-timeline palette.
+ */
+public final class NoteTimeline {
+
+    private final long[] micros;
+    private final short[] sounds;
+    private final float[] volumes;
+    private final float[] pitches;
+    private final byte[] pannings;
+    private final Identifier[] palette;
+
+    NoteTimeline(long[] micros, short[] sounds, float[] volumes, float[] pitches, byte[] pannings, Identifier[] palette) {
+        this.micros = micros;
+        this.sounds = sounds;
+        this.volumes = volumes;
+        this.pitches = pitches;
+        this.pannings = pannings;
+        this.palette = palette;
+    }
+
+    public int size() {
+        return micros.length;
+    }
+
+    public long micros(int index) {
+        return micros[index];
+    }
+
+    public Identifier sound(int index) {
+        return palette[sounds[index]];
+    }
+
+    public float volume(int index) {
+        return volumes[index];
+    }
+
+    public float pitch(int index) {
+        return pitches[index];
+    }
+
+    public int panning(int index) {
+        return pannings[index];
+    }
+
+    /**
+     * @return index of the first note at or after the given position
+     */
+    public int firstNoteAtOrAfter(long position) {
+        int low = 0;
+        int high = micros.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (micros[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public interface NoteConsumer {
+        void accept(Identifier sound, float volume, float pitch, int panning);
+    }
+
+    public final class Cursor {
+
+        private int index = 0;
+
+        private Cursor() {
+        }
+
+        public void seek(long position) {
+            this.index = firstNoteAtOrAfter(position);
+        }
+
+        /**
+         * Emits every note up to and including the given position
+         */
+        public void advance(long position, NoteConsumer consumer) {
+            final long[] micros = NoteTimeline.this.micros;
+            while (this.index < micros.length && micros[this.index] <= position) {
+                final int i = this.index++;
+                consumer.accept(palette[sounds[i]], volumes[i], pitches[i], pannings[i]);
+            }
+        }
+
+        public boolean isDone() {
+            return this.index >= micros.length;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.ishland.vanillamelody.common.playback.timeline;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ishland.vanillamelody.common.playback.PlayList;
+import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compiled timelines keyed by song sha256, compiled in the background on first request
+ */
+public class NoteTimelineCache {
+
+    private static final ExecutorService COMPILER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("VanillaMelody Timeline Compiler").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build()
+    );
+
+    private static final Cache<String, NoteTimeline> CACHE = CacheBuilder.newBuilder().softValues().build();
+    private static final Set<String> PENDING = Sets.newConcurrentHashSet();
+
+    /**
+     * @return the compiled timeline, or null if it is not ready yet in which case compilation is queued
+     */
+    @Nullable
+    public static NoteTimeline getOrCompile(PlayList.SongInfo song) {
+        final String key = DigestUtils.bytesToHex(song.sha256());
+        final NoteTimeline timeline = CACHE.getIfPresent(key);
+        if (timeline != null) return timeline;
+        if (PENDING.add(key)) {
+            COMPILER.execute(() -> {
+                try {
+                    final long start = System.nanoTime();
+                    final NoteTimeline compiled = NoteTimelineCompiler.compile(song.sequence());
+                    CACHE.put(key, compiled);
+                    if (MinecraftMidiSynthesizer.DEBUG) {
+                        System.out.println("Compiled %s into %d notes in %.2fms".formatted(song.relativeFilePath(), compiled.size(), (System.nanoTime() - start) / 1_000_000.0));
+                    }
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                } finally {
+                    PENDING.remove(key);
+                }
+            });
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.ishland.vanillamelody.common.playback.timeline;
+
+import com.ishland.vanillamelody.common.playback.data.Note;
+import com.ishland.vanillamelody.common.playback.sequencer.PackedSequence;
+import com.ishland.vanillamelody.common.playback.synth.MinecraftMidiSynthesizer;
+import com.ishland.vanillamelody.common.playback.synth.NoteReceiver;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.util.Identifier;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Renders a {@link PackedSequence} through a {@link MinecraftMidiSynthesizer} in simulated time
+ */
+public class NoteTimelineCompiler {
+
+    /**
+     * Synthesizer tick interval, matches the station tick rate
+     */
+    public static final long SYNTH_TICK_MICROS = 20_000L;
+
+    public static NoteTimeline compile(PackedSequence sequence) {
+        final Recorder recorder = new Recorder(Math.max(16, sequence.size() / 2));
+        final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(recorder);
+        synthesizer.reset(true);
+        simulate(sequence, synthesizer, micros -> recorder.now = micros);
+        return recorder.build();
+    }
+
+    /**
+     * Runs a whole sequence through a synthesizer as fast as possible
+     *
+     * @param clock receives the simulated time before every synthesizer tick and message
+     */
+    public static void simulate(PackedSequence sequence, MinecraftMidiSynthesizer synthesizer, LongConsumer clock) {
+        long nextSynthTick = 0L;
+        int extendedCursor = 0;
+        for (int i = 0, size = sequence.size(); i < size; i++) {
+            final long event = sequence.event(i);
+            final long micros = sequence.tickToMicros(PackedSequence.tick(event));
+            while (nextSynthTick < micros) {
+                clock.accept(nextSynthTick);
+                synthesizer.tick();
+                nextSynthTick += SYNTH_TICK_MICROS;
+            }
+            clock.accept(micros);
+            if (PackedSequence.isExtended(event)) {
+                final MidiMessage message = sequence.extendedMessage(extendedCursor++);
+                if (!(message instanceof MetaMessage)) {
+                    synthesizer.send(message, -1L);
+                }
+            } else {
+                synthesizer.send(PackedSequence.status(event), PackedSequence.data1(event), PackedSequence.data2(event));
+            }
+        }
+
+        // long sounds keep retriggering until the song ends
+        final long length = sequence.getMicrosecondLength();
+        while (nextSynthTick < length) {
+            clock.accept(nextSynthTick);
+            synthesizer.tick();
+            nextSynthTick += SYNTH_TICK_MICROS;
+        }
+    }
+
+    private static class Recorder implements NoteReceiver {
+
+        private final Object2IntOpenHashMap<Identifier> paletteIndex = new Object2IntOpenHashMap<>();
+        private final ArrayList<Identifier> palette = new ArrayList<>();
+
+        private long now = 0L;
+        private int size = 0;
+        private long[] micros;
+        private short[] sounds;
+        private float[] volumes;
+        private float[] pitches;
+        private byte[] pannings;
+
+        private Recorder(int capacity) {
+            this.paletteIndex.defaultReturnValue(-1);
+            this.micros = new long[capacity];
+            this.sounds = new short[capacity];
+            this.volumes = new float[capacity];
+            this.pitches = new float[capacity];
+            this.pannings = new byte[capacity];
+        }
+
+        @Override
+        public void playNote(Note note, BooleanSupplier isDone) {
+            record(new Identifier(note.instrument()), note.volume(), note.pitch(), note.panning());
+        }
+
+        @Override
+        public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+            record(sound, volume, pitch, panning);
+        }
+
+        private void record(Identifier id, float volume, float pitch, int panning) {
+            int sound = paletteIndex.getInt(id);
+            if (sound == -1) {
+                sound = palette.size();
+                palette.add(id);
+                paletteIndex.put(id, sound);
+            }
+
+            if (size == micros.length) {
+                final int capacity = size * 2;
+                micros = Arrays.copyOf(micros, capacity);
+                sounds = Arrays.copyOf(sounds, capacity);
+                volumes = Arrays.copyOf(volumes, capacity);
+                pitches = Arrays.copyOf(pitches, capacity);
+                pannings = Arrays.copyOf(pannings, capacity);
+            }
+            micros[size] = now;
+            sounds[size] = (short) sound;
+            volumes[size] = volume;
+            pitches[size] = pitch;
+            pannings[size] = (byte) panning;
+            size++;
+        }
+
+        private NoteTimeline build() {
+            return new NoteTimeline(
+                    Arrays.copyOf(micros, size),
+                    Arrays.copyOf(sounds, size),
+                    Arrays.copyOf(volumes, size),
+                    Arrays.copyOf(pitches, size),
+                    Arrays.copyOf(pannings, size),
+                    palette.toArray(Identifier[]::new)
+            );
+        }
+    }
+
+}
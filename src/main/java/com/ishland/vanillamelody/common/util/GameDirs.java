@@ -0,0 +1,27 @@
+package com.ishland.vanillamelody.common.util;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.nio.file.Path;
+
+/**
+ * Game and config directories
+ * <p>
+ * The {@code vanillamelody.gameDir} system property replaces both, so the config and caches can be used
+ * without a running game, e.g. by benchmarks.
+ */
+public class GameDirs {
+
+    private static final String GAME_DIR_PROPERTY = "vanillamelody.gameDir";
+
+    public static Path gameDir() {
+        final String override = System.getProperty(GAME_DIR_PROPERTY);
+        return override != null ? Path.of(override) : FabricLoader.getInstance().getGameDir();
+    }
+
+    public static Path configDir() {
+        final String override = System.getProperty(GAME_DIR_PROPERTY);
+        return override != null ? Path.of(override, "config") : FabricLoader.getInstance().getConfigDir();
+    }
+
+}
@@ -1,7 +1,7 @@
 package com.ishland.vanillamelody.mixin;
 
 import com.ishland.vanillamelody.common.Config;
-import com.ishland.vanillamelody.common.playback.ServerSongPlayer;
+import com.ishland.vanillamelody.common.playback.ServerStationManager;
 import net.minecraft.network.ClientConnection;
 import net.minecraft.server.PlayerManager;
 import net.minecraft.server.network.ServerPlayerEntity;
@@ -17,18 +17,17 @@ public class MixinPlayerManager {
     @Inject(method = "onPlayerConnect", at = @At("RETURN"))
     private void onPlayerConnect(ClientConnection connection, ServerPlayerEntity player, CallbackInfo ci) {
         if (Config.DEFAULT_RADIO_ENABLED)
-            ServerSongPlayer.INSTANCE.addPlayer(player);
+            ServerStationManager.join(player, ServerStationManager.getDefault());
     }
 
     @Inject(method = "remove", at = @At("HEAD"))
     private void onRemove(ServerPlayerEntity player, CallbackInfo ci) {
-        ServerSongPlayer.INSTANCE.removePlayer(player);
+        ServerStationManager.leave(player);
     }
 
     @Inject(method = "respawnPlayer", at = @At("RETURN"))
     private void onRespawn(ServerPlayerEntity player, boolean alive, CallbackInfoReturnable<ServerPlayerEntity> cir) {
-        if (ServerSongPlayer.INSTANCE.removePlayer(player))
-            ServerSongPlayer.INSTANCE.addPlayer(cir.getReturnValue());
+        ServerStationManager.rejoin(player, cir.getReturnValue());
     }
 
 }
@@ -0,0 +1,18 @@
+package com.ishland.vanillamelody.mixin.client;
+
+import com.ishland.vanillamelody.client.playback.ClientSongPlayer;
+import net.minecraft.client.MinecraftClient;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(MinecraftClient.class)
+public class MixinMinecraftClient {
+
+    @Inject(method = "render", at = @At("HEAD"))
+    private void preRender(boolean tick, CallbackInfo ci) {
+        ClientSongPlayer.drainNotes();
+    }
+
+}
@@ -1,13 +1,29 @@
 package com.ishland.vanillamelody.mixin.client;
 
+import com.ishland.vanillamelody.client.playback.RenderedSongSoundInstance;
+import net.minecraft.client.sound.AudioStream;
+import net.minecraft.client.sound.SoundInstance;
+import net.minecraft.client.sound.SoundLoader;
 import net.minecraft.client.sound.SoundSystem;
+import net.minecraft.util.Identifier;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Constant;
+import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.ModifyConstant;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 @Mixin(value = SoundSystem.class, priority = 500)
 public class MixinSoundSystem {
 
+    @Unique
+    private SoundInstance vanillamelody$playing;
+
     @ModifyConstant(method = "getAdjustedPitch", constant = @Constant(floatValue = 0.5f), require = 0)
     private float modifyMinimumPitch(float constant) {
         if (constant == 0.5f) return 0.01f;
@@ -26,4 +42,29 @@ public class MixinSoundSystem {
         return constant;
     }
 
+    @Inject(method = "play(Lnet/minecraft/client/sound/SoundInstance;)V", at = @At("HEAD"))
+    private void capturePlaying(SoundInstance sound, CallbackInfo ci) {
+        this.vanillamelody$playing = sound;
+    }
+
+    @Redirect(method = "play(Lnet/minecraft/client/sound/SoundInstance;)V", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/sound/SoundLoader;loadStreamed(Lnet/minecraft/util/Identifier;Z)Ljava/util/concurrent/CompletableFuture;"))
+    private CompletableFuture<AudioStream> redirectLoadStreamed(SoundLoader loader, Identifier id, boolean repeatInstantly) {
+        if (this.vanillamelody$playing instanceof RenderedSongSoundInstance rendered) {
+            // rendered songs are not resources, stream them from their file
+            try {
+                return CompletableFuture.completedFuture(rendered.openStream());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return loader.loadStreamed(id, repeatInstantly);
+    }
+
+    // every exit of play, including the early ones, so that no finished sound stays referenced
+    @Inject(method = "play(Lnet/minecraft/client/sound/SoundInstance;)V", at = @At("RETURN"))
+    private void releasePlaying(SoundInstance sound, CallbackInfo ci) {
+        this.vanillamelody$playing = null;
+    }
+
 }
@@ -0,0 +1,102 @@
+package com.ishland.vanillamelody.client.playback;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NoteEventQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        final NoteEventQueue queue = new NoteEventQueue(5);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(null, (byte) 0, 1.0f, 0, 1.0f, i, Long.MAX_VALUE, i));
+        }
+        assertFalse(queue.offer(null, (byte) 0, 1.0f, 0, 1.0f, 8, Long.MAX_VALUE, 8));
+        assertEquals(1L, queue.getDropped());
+    }
+
+    @Test
+    public void drainsInOfferOrderAcrossLaps() {
+        final NoteEventQueue queue = new NoteEventQueue(8);
+        final LongArrayList drained = new LongArrayList();
+        long next = 0L;
+        for (int lap = 0; lap < 100; lap++) {
+            // uneven batches so head and tail wrap at different slots
+            final int batch = 1 + lap % 8;
+            for (int i = 0; i < batch; i++, next++) {
+                assertTrue(queue.offer(null, (byte) (next & 15), next * 0.5f, (int) next, 1.0f, next, next + 1, next + 2));
+            }
+            queue.drain((synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, timestamp) -> {
+                assertEquals((byte) (voice & 15), mcInstrument);
+                assertEquals(voice * 0.5f, volume);
+                assertEquals((int) voice, panning);
+                assertEquals(voice + 1, playableUntil);
+                assertEquals(voice + 2, timestamp);
+                drained.add(voice);
+            });
+        }
+        assertEquals(next, drained.size());
+        for (int i = 0; i < drained.size(); i++) {
+            assertEquals(i, drained.getLong(i));
+        }
+        assertEquals(0L, queue.getDropped());
+    }
+
+    @Test
+    public void keepsPerProducerOrderUnderContention() throws InterruptedException {
+        final int producers = 4;
+        final int notesPerProducer = 100_000;
+        final NoteEventQueue queue = new NoteEventQueue(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong offered = new AtomicLong();
+        final Thread[] threads = new Thread[producers];
+        for (int producer = 0; producer < producers; producer++) {
+            final byte id = (byte) producer;
+            threads[producer] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < notesPerProducer; i++) {
+                    if (queue.offer(null, id, 1.0f, 0, 1.0f, i, Long.MAX_VALUE, 0L)) offered.incrementAndGet();
+                }
+            });
+            threads[producer].start();
+        }
+
+        final long[] last = new long[producers];
+        Arrays.fill(last, -1L);
+        final long[] received = new long[1];
+        final NoteEventQueue.Consumer consumer = (synthesizer, mcInstrument, volume, panning, rawPitch, voice, playableUntil, timestamp) -> {
+            assertTrue(voice > last[mcInstrument], "producer " + mcInstrument + " delivered " + voice + " after " + last[mcInstrument]);
+            last[mcInstrument] = voice;
+            received[0]++;
+        };
+        start.countDown();
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                if (thread.isAlive()) running = true;
+            }
+            queue.drain(consumer);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        queue.drain(consumer);
+
+        assertEquals(offered.get(), received[0]);
+        assertEquals((long) producers * notesPerProducer, received[0] + queue.getDropped());
+    }
+
+}
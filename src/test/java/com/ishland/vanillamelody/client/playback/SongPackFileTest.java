@@ -0,0 +1,138 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SongPackFileTest {
+
+    private static final String NAME = "songs";
+    private static final long MAX_BYTES = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private static byte[] song(int seed, int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private List<Path> packs() throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.filter(path -> path.getFileName().toString().endsWith(".pack")).toList();
+        }
+    }
+
+    @Test
+    public void recordsSurviveReopen() {
+        final SongPackFile pack = new SongPackFile(directory, NAME, MAX_BYTES);
+        final byte[] first = song(1, 1000);
+        final byte[] second = song(2, 3000);
+        pack.put(DigestUtils.sha256(first), first);
+        pack.put(DigestUtils.sha256(second), second);
+        assertArrayEquals(first, pack.get(DigestUtils.sha256(first)));
+
+        final SongPackFile reopened = new SongPackFile(directory, NAME, MAX_BYTES);
+        assertArrayEquals(first, reopened.get(DigestUtils.sha256(first)));
+        assertArrayEquals(second, reopened.get(DigestUtils.sha256(second)));
+        assertNull(reopened.get(DigestUtils.sha256(song(3, 10))));
+    }
+
+    @Test
+    public void tornRecordIsCutOff() throws IOException {
+        final SongPackFile pack = new SongPackFile(directory, NAME, MAX_BYTES);
+        final byte[] complete = song(1, 1000);
+        pack.put(DigestUtils.sha256(complete), complete);
+        final Path path = packs().get(0);
+        final long intactSize = Files.size(path);
+
+        // a record header promising more bytes than were written before a crash
+        final byte[] torn = song(2, 2000);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final ByteBuffer record = ByteBuffer.allocate(DigestUtils.SHA256_BYTES + 8 + 500);
+            record.put(DigestUtils.sha256(torn)).putInt(torn.length).putInt(0).put(torn, 0, 500).flip();
+            while (record.hasRemaining()) channel.write(record);
+        }
+
+        final SongPackFile reopened = new SongPackFile(directory, NAME, MAX_BYTES);
+        assertEquals(intactSize, Files.size(path));
+        assertFalse(reopened.contains(DigestUtils.sha256(torn)));
+        assertArrayEquals(complete, reopened.get(DigestUtils.sha256(complete)));
+
+        // appending continues right after the last intact record
+        final byte[] next = song(3, 1500);
+        reopened.put(DigestUtils.sha256(next), next);
+        final SongPackFile again = new SongPackFile(directory, NAME, MAX_BYTES);
+        assertArrayEquals(complete, again.get(DigestUtils.sha256(complete)));
+        assertArrayEquals(next, again.get(DigestUtils.sha256(next)));
+    }
+
+    @Test
+    public void corruptedRecordIsNotReturned() throws IOException {
+        final SongPackFile pack = new SongPackFile(directory, NAME, MAX_BYTES);
+        final byte[] bytes = song(1, 1000);
+        pack.put(DigestUtils.sha256(bytes), bytes);
+        final Path path = packs().get(0);
+        final byte[] contents = Files.readAllBytes(path);
+        contents[contents.length - 1] ^= 0x55;
+        Files.write(path, contents);
+
+        final SongPackFile reopened = new SongPackFile(directory, NAME, MAX_BYTES);
+        assertTrue(reopened.contains(DigestUtils.sha256(bytes)));
+        assertNull(reopened.get(DigestUtils.sha256(bytes)));
+        assertFalse(reopened.contains(DigestUtils.sha256(bytes)));
+    }
+
+    @Test
+    public void compactionKeepsRecentlyUsedRecords() throws IOException {
+        final SongPackFile pack = new SongPackFile(directory, NAME, MAX_BYTES);
+        final byte[][] songs = new byte[20][];
+        for (int i = 0; i < 12; i++) {
+            songs[i] = song(i, 5000);
+            pack.put(DigestUtils.sha256(songs[i]), songs[i]);
+        }
+        // the oldest song becomes the most recently used one
+        assertArrayEquals(songs[0], pack.get(DigestUtils.sha256(songs[0])));
+        for (int i = 12; i < songs.length; i++) {
+            songs[i] = song(i, 5000);
+            pack.put(DigestUtils.sha256(songs[i]), songs[i]);
+        }
+
+        final List<Path> packs = packs();
+        assertEquals(1, packs.size());
+        assertNotEquals(NAME + ".0.pack", packs.get(0).getFileName().toString());
+        assertTrue(Files.size(packs.get(0)) <= MAX_BYTES);
+
+        final SongPackFile reopened = new SongPackFile(directory, NAME, MAX_BYTES);
+        assertArrayEquals(songs[0], reopened.get(DigestUtils.sha256(songs[0])));
+        assertArrayEquals(songs[songs.length - 1], reopened.get(DigestUtils.sha256(songs[songs.length - 1])));
+        assertFalse(reopened.contains(DigestUtils.sha256(songs[1])));
+        int kept = 0;
+        for (byte[] song : songs) {
+            final byte[] stored = reopened.get(DigestUtils.sha256(song));
+            if (stored == null) continue;
+            assertArrayEquals(song, stored);
+            kept++;
+        }
+        assertTrue(kept > 1 && kept < songs.length);
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.ishland.vanillamelody.client.playback;
+
+import com.ishland.vanillamelody.common.playback.NoteUtil;
+import com.ishland.vanillamelody.common.playback.data.MidiInstruments;
+import com.ishland.vanillamelody.common.playback.sequencer.StandardMidiFileParser;
+import com.ishland.vanillamelody.common.playback.timeline.NoteTimelineCompiler;
+import net.minecraft.util.Identifier;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SongRendererTest {
+
+    // 480 ticks per quarter at 120 bpm
+    private static final long MICROS_PER_TICK = 500_000L / 480;
+
+    private static final MidiInstruments.Bank DEFAULT_BANK = new MidiInstruments.Bank(MidiInstruments.instrumentMapping, MidiInstruments.percussionMapping);
+
+    private static byte[] song(int program, int key, long offTick) throws InvalidMidiDataException, IOException {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        final Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, program, 0), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0), offTick));
+        // keeps the song running past the release
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 0, 0), offTick + 960));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void notesUseBaseSampleAtRawPitch() throws Exception {
+        // two octaves above the base range of the note block samples
+        final int key = 100;
+        final SongRenderer.Recorder recorder = SongRenderer.record(StandardMidiFileParser.parse(song(0, key, 480)), DEFAULT_BANK);
+
+        final MidiInstruments.MidiInstrument instrument = MidiInstruments.instrumentMapping.get(0);
+        final short mcKey = (short) (key + instrument.octaveModifier * 12);
+        assertTrue(recorder.size >= 1);
+        assertEquals(1, recorder.palette.size());
+        final Identifier sound = recorder.palette.get(0);
+        assertEquals(NoteUtil.getBaseSoundId((byte) instrument.mcInstrument), sound);
+        assertTrue(NoteUtil.getOctaveSuffix(mcKey, (short) 0) != 0);
+        assertEquals(NoteUtil.getPitchOnBaseOctave(mcKey, (short) 0), recorder.pitches[0]);
+    }
+
+    @Test
+    public void sustainedNoteEndsOnRelease() throws Exception {
+        // program 18 is a long sound in the default bank
+        final long offTick = 960;
+        final SongRenderer.Recorder recorder = SongRenderer.record(StandardMidiFileParser.parse(song(18, 60, offTick)), DEFAULT_BANK);
+
+        assertEquals(1, recorder.size);
+        assertTrue(recorder.sustained[0]);
+        final long release = offTick * MICROS_PER_TICK;
+        assertTrue(recorder.ends[0] >= release - MICROS_PER_TICK, "ended at " + recorder.ends[0]);
+        assertTrue(recorder.ends[0] <= release + NoteTimelineCompiler.SYNTH_TICK_MICROS + MICROS_PER_TICK, "ended at " + recorder.ends[0]);
+    }
+
+    @Test
+    public void shortNotesAreNotSustained() throws Exception {
+        final SongRenderer.Recorder recorder = SongRenderer.record(StandardMidiFileParser.parse(song(0, 60, 480)), DEFAULT_BANK);
+        assertEquals(1, recorder.size);
+        assertFalse(recorder.sustained[0]);
+    }
+
+    @Test
+    public void frameAtIsClamped() {
+        final SongRenderer.RenderedSong rendered = new SongRenderer.RenderedSong(Path.of("song.pcm"), SongRenderer.SAMPLE_RATE * 10L);
+        assertEquals(0L, rendered.frameAt(-1_000_000L));
+        assertEquals(SongRenderer.SAMPLE_RATE / 2L, rendered.frameAt(500_000L));
+        assertEquals(rendered.frames(), rendered.frameAt(60_000_000L));
+    }
+
+}
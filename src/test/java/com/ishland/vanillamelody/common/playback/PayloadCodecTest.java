@@ -0,0 +1,80 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PayloadCodecTest {
+
+    private final boolean compress = Config.COMPRESS_MIDI_TRANSFERS;
+
+    @AfterEach
+    public void restoreConfig() {
+        Config.COMPRESS_MIDI_TRANSFERS = compress;
+    }
+
+    private static byte[] inflate(byte[] payload, int length) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            final byte[] data = new byte[length];
+            int decoded = 0;
+            int inflated;
+            while (decoded < length && (inflated = inflater.inflate(data, decoded, length - decoded)) > 0) {
+                decoded += inflated;
+            }
+            assertEquals(length, decoded);
+            return data;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Test
+    public void deflateRoundTrip() throws DataFormatException {
+        final Random random = new Random(0);
+        final byte[] noise = new byte[100_000];
+        random.nextBytes(noise);
+        // repeated note events compress like midi tracks do
+        final byte[] events = new byte[100_000];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = (byte) (i % 4 == 0 ? 0x90 : random.nextInt(8));
+        }
+        for (byte[] bytes : new byte[][]{new byte[0], new byte[]{42}, noise, events}) {
+            assertArrayEquals(bytes, inflate(PayloadCodec.deflate(bytes), bytes.length));
+        }
+        assertTrue(PayloadCodec.deflate(events).length < events.length / 2);
+    }
+
+    @Test
+    public void idsRoundTrip() {
+        for (PayloadCodec codec : PayloadCodec.values()) {
+            assertSame(codec, PayloadCodec.byId(codec.id()));
+        }
+        assertNull(PayloadCodec.byId(-1));
+        assertNull(PayloadCodec.byId(PayloadCodec.values().length));
+    }
+
+    @Test
+    public void negotiatesBestCommonCodec() {
+        Config.COMPRESS_MIDI_TRANSFERS = true;
+        assertSame(PayloadCodec.DEFLATE, PayloadCodec.negotiate(PayloadCodec.RAW.bit() | PayloadCodec.DEFLATE.bit()));
+        assertSame(PayloadCodec.RAW, PayloadCodec.negotiate(PayloadCodec.RAW.bit()));
+        // raw is the fallback even without any common codec
+        assertSame(PayloadCodec.RAW, PayloadCodec.negotiate(0));
+
+        Config.COMPRESS_MIDI_TRANSFERS = false;
+        assertSame(PayloadCodec.RAW, PayloadCodec.negotiate(PayloadCodec.RAW.bit() | PayloadCodec.DEFLATE.bit()));
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.ishland.vanillamelody.common.playback;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SongStoreTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * @return a short song with a unique title, the store is shared by all tests
+     */
+    private static byte[] uniqueSong() throws InvalidMidiDataException, IOException {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        final Track track = sequence.createTrack();
+        final byte[] title = UUID.randomUUID().toString().getBytes(StandardCharsets.ISO_8859_1);
+        track.add(new MidiEvent(new MetaMessage(0x03, title, title.length), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 480));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        return out.toByteArray();
+    }
+
+    private PlayList station(String name, byte[]... songs) throws IOException {
+        final Path songsDirectory = directory.resolve(name);
+        Files.createDirectories(songsDirectory);
+        for (int i = 0; i < songs.length; i++) {
+            Files.write(songsDirectory.resolve("song-" + i + ".mid"), songs[i]);
+        }
+        return PlayList.scan(songsDirectory.toFile());
+    }
+
+    private static PlayList.SongInfo find(PlayList list, byte[] sha256) {
+        for (PlayList.SongInfo song : list.getSongs()) {
+            if (Arrays.equals(song.sha256(), sha256)) return song;
+        }
+        throw new AssertionError("song not in playlist");
+    }
+
+    @Test
+    public void sharedSongStaysUntilLastRegistrantIsRemoved() throws Exception {
+        final byte[] shared = uniqueSong();
+        final byte[] own = uniqueSong();
+        final PlayList first = station("first", shared, own);
+        final PlayList second = station("second", shared);
+        final byte[] sharedHash = DigestUtils.sha256(shared);
+        final byte[] ownHash = DigestUtils.sha256(own);
+
+        SongStore.replace(null, first);
+        SongStore.replace(null, second);
+        assertSame(find(second, sharedHash), SongStore.get(sharedHash));
+
+        // the remaining station's song is handed out again
+        SongStore.replace(second, null);
+        assertSame(find(first, sharedHash), SongStore.get(sharedHash));
+        assertTrue(SongStore.contains(ownHash));
+
+        SongStore.replace(first, null);
+        assertFalse(SongStore.contains(sharedHash));
+        assertFalse(SongStore.contains(ownHash));
+    }
+
+    @Test
+    public void reloadKeepsSongsRegistered() throws Exception {
+        final byte[] song = uniqueSong();
+        final PlayList list = station("station", song);
+        final byte[] hash = list.getSongs().get(0).sha256();
+        final int sizeBefore = SongStore.size();
+
+        SongStore.replace(null, list);
+        final PlayList reloaded = PlayList.scan(directory.resolve("station").toFile(), list);
+        SongStore.replace(list, reloaded);
+        assertSame(reloaded.getSongs().get(0), SongStore.get(hash));
+        assertEquals(sizeBefore + 1, SongStore.size());
+
+        SongStore.replace(reloaded, null);
+        assertFalse(SongStore.contains(hash));
+        assertEquals(sizeBefore, SongStore.size());
+    }
+
+    @Test
+    public void duplicateFilesInOneStationAreCountedSeparately() throws Exception {
+        final byte[] song = uniqueSong();
+        final PlayList list = station("station", song, song);
+        final PlayList trimmed = station("trimmed", song);
+        final byte[] hash = list.getSongs().get(0).sha256();
+
+        SongStore.replace(null, list);
+        SongStore.replace(null, trimmed);
+        SongStore.replace(trimmed, null);
+        assertTrue(SongStore.contains(hash));
+        SongStore.replace(list, null);
+        assertFalse(SongStore.contains(hash));
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.ishland.vanillamelody.common.playback.data;
+
+import com.ishland.vanillamelody.common.util.DigestUtils;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class MidiInstrumentsTest {
+
+    private static void assertInstrumentsEqual(Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> expected, Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (int key : expected.keySet()) {
+            final MidiInstruments.MidiInstrument expectedInstrument = expected.get(key);
+            final MidiInstruments.MidiInstrument actualInstrument = actual.get(key);
+            assertNotNull(actualInstrument);
+            assertEquals(expectedInstrument.mcInstrument, actualInstrument.mcInstrument, "mcInstrument of program " + key);
+            assertEquals(expectedInstrument.octaveModifier, actualInstrument.octaveModifier, "octaveModifier of program " + key);
+            assertEquals(expectedInstrument.isLongSound, actualInstrument.isLongSound, "isLongSound of program " + key);
+        }
+    }
+
+    private static void assertPercussionsEqual(Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> expected, Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (int key : expected.keySet()) {
+            final MidiInstruments.MidiPercussion expectedPercussion = expected.get(key);
+            final MidiInstruments.MidiPercussion actualPercussion = actual.get(key);
+            assertNotNull(actualPercussion);
+            assertEquals(expectedPercussion.mcInstrument, actualPercussion.mcInstrument, "mcInstrument of key " + key);
+            assertEquals(expectedPercussion.midiKey, actualPercussion.midiKey, "midiKey of key " + key);
+        }
+    }
+
+    @Test
+    public void defaultBankRoundTrip() {
+        final byte[] encoded = MidiInstruments.encodeBank(MidiInstruments.instrumentMapping, MidiInstruments.percussionMapping);
+        final MidiInstruments.Bank bank = MidiInstruments.decodeBank(encoded);
+        assertInstrumentsEqual(MidiInstruments.instrumentMapping, bank.instruments());
+        assertPercussionsEqual(MidiInstruments.percussionMapping, bank.percussions());
+
+        final byte[] reencoded = MidiInstruments.encodeBank(bank.instruments(), bank.percussions());
+        assertArrayEquals(encoded, reencoded);
+        assertArrayEquals(DigestUtils.sha256(encoded), DigestUtils.sha256(reencoded));
+    }
+
+    @Test
+    public void sparseBankRoundTrip() {
+        final Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> instruments = new Int2ObjectOpenHashMap<>();
+        instruments.put(127, new MidiInstruments.MidiInstrument(15, -2, true));
+        instruments.put(0, new MidiInstruments.MidiInstrument(0, 0, false));
+        instruments.put(9, new MidiInstruments.MidiInstrument(7, 1, false));
+        final Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> percussions = new Int2ObjectOpenHashMap<>();
+        percussions.put(35, new MidiInstruments.MidiPercussion(1, 10));
+
+        final MidiInstruments.Bank bank = MidiInstruments.decodeBank(MidiInstruments.encodeBank(instruments, percussions));
+        assertInstrumentsEqual(instruments, bank.instruments());
+        assertPercussionsEqual(percussions, bank.percussions());
+    }
+
+    @Test
+    public void hashIgnoresInsertionOrder() {
+        final Int2ObjectOpenHashMap<MidiInstruments.MidiInstrument> reversedInstruments = new Int2ObjectOpenHashMap<>();
+        for (int key = 127; key >= 0; key--) {
+            final MidiInstruments.MidiInstrument instrument = MidiInstruments.instrumentMapping.get(key);
+            if (instrument != null) reversedInstruments.put(key, instrument);
+        }
+        final Int2ObjectOpenHashMap<MidiInstruments.MidiPercussion> reversedPercussions = new Int2ObjectOpenHashMap<>();
+        for (int key = 127; key >= 0; key--) {
+            final MidiInstruments.MidiPercussion percussion = MidiInstruments.percussionMapping.get(key);
+            if (percussion != null) reversedPercussions.put(key, percussion);
+        }
+
+        assertArrayEquals(
+                DigestUtils.sha256(MidiInstruments.encodeBank(MidiInstruments.instrumentMapping, MidiInstruments.percussionMapping)),
+                DigestUtils.sha256(MidiInstruments.encodeBank(reversedInstruments, reversedPercussions)));
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.ishland.vanillamelody.common.playback.sequencer;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StandardMidiFileParserTest {
+
+    private static byte[] file(int... track) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // format 0, one track, 480 ticks per quarter
+        out.writeBytes(ByteBuffer.allocate(14).putInt(0x4D546864).putInt(6).putShort((short) 0).putShort((short) 1).putShort((short) 480).array());
+        out.writeBytes(ByteBuffer.allocate(8).putInt(0x4D54726B).putInt(track.length + 4).array());
+        for (int b : track) {
+            out.write(b);
+        }
+        // end of track
+        out.writeBytes(new byte[]{0x00, (byte) 0xFF, 0x2F, 0x00});
+        return out.toByteArray();
+    }
+
+    private static PackedSequence reference(byte[] bytes) throws InvalidMidiDataException, IOException {
+        return PackedSequence.of(MidiSystem.getSequence(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void assertSameSequence(PackedSequence expected, PackedSequence actual) {
+        assertEquals(expected.getDivisionType(), actual.getDivisionType());
+        assertEquals(expected.getResolution(), actual.getResolution());
+        assertEquals(expected.getTickLength(), actual.getTickLength());
+        assertEquals(expected.getMicrosecondLength(), actual.getMicrosecondLength());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.event(i), actual.event(i), "event " + i);
+        }
+        assertEquals(expected.extendedCount(), actual.extendedCount());
+        for (int i = 0; i < expected.extendedCount(); i++) {
+            final MidiMessage expectedMessage = expected.extendedMessage(i);
+            final MidiMessage actualMessage = actual.extendedMessage(i);
+            assertEquals(expectedMessage.getClass(), actualMessage.getClass(), "extended message " + i);
+            assertArrayEquals(expectedMessage.getMessage(), actualMessage.getMessage(), "extended message " + i);
+        }
+    }
+
+    @Test
+    public void runningStatusRepeatsChannelMessages() throws InvalidMidiDataException {
+        final PackedSequence sequence = StandardMidiFileParser.parse(file(
+                0x00, 0x90, 0x3C, 0x64,
+                0x60, 0x3C, 0x00
+        ));
+        assertEquals(2, sequence.size());
+        assertEquals(0x90, PackedSequence.status(sequence.event(1)));
+        assertEquals(0x3C, PackedSequence.data1(sequence.event(1)));
+        assertEquals(0x00, PackedSequence.data2(sequence.event(1)));
+    }
+
+    // the JDK reader takes the meta or sysex status as running status instead, and fails on or misreads these
+    @Test
+    public void runningStatusSurvivesMetaEvent() throws InvalidMidiDataException {
+        final byte[] bytes = file(
+                0x00, 0x90, 0x3C, 0x64,
+                0x00, 0xFF, 0x01, 0x01, 0x41,
+                0x60, 0x3C, 0x00
+        );
+        final PackedSequence sequence = StandardMidiFileParser.parse(bytes);
+        assertEquals(3, sequence.size());
+        assertEquals(0x90, PackedSequence.status(sequence.event(2)));
+        assertEquals(0x3C, PackedSequence.data1(sequence.event(2)));
+        assertEquals(0x00, PackedSequence.data2(sequence.event(2)));
+    }
+
+    @Test
+    public void runningStatusSurvivesSysexEvent() throws InvalidMidiDataException {
+        final byte[] bytes = file(
+                0x00, 0x90, 0x3C, 0x64,
+                0x00, 0xF0, 0x02, 0x7E, 0xF7,
+                0x60, 0x3C, 0x00
+        );
+        final PackedSequence sequence = StandardMidiFileParser.parse(bytes);
+        assertEquals(3, sequence.size());
+        assertEquals(0x90, PackedSequence.status(sequence.event(2)));
+        assertEquals(0x3C, PackedSequence.data1(sequence.event(2)));
+        assertEquals(0x00, PackedSequence.data2(sequence.event(2)));
+    }
+
+    @Test
+    public void matchesJdkReaderOnMultiTrackFile() throws Exception {
+        final Random random = new Random(0);
+        final Sequence sequence = new Sequence(Sequence.PPQ, 384);
+        final Track conductor = sequence.createTrack();
+        final byte[] title = "Test song".getBytes();
+        conductor.add(new MidiEvent(new MetaMessage(0x03, title, title.length), 0));
+        // tempo changes between 60 and 240 bpm
+        for (int i = 0; i < 8; i++) {
+            final int mpq = 250_000 + random.nextInt(750_000);
+            conductor.add(new MidiEvent(new MetaMessage(0x51, new byte[]{(byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq}, 3), i * 1536L));
+        }
+        final byte[] gmReset = {(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
+        conductor.add(new MidiEvent(new SysexMessage(gmReset, gmReset.length), 0));
+        for (int channel = 0; channel < 4; channel++) {
+            final Track track = sequence.createTrack();
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, random.nextInt(128), 0), 0));
+            long tick = 0L;
+            for (int i = 0; i < 200; i++) {
+                tick += random.nextInt(96);
+                final int key = 36 + random.nextInt(60);
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, key, 1 + random.nextInt(127)), tick));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, channel, random.nextInt(128), random.nextInt(128)), tick + 7));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, key, 0), tick + 1 + random.nextInt(200)));
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 1, out);
+        final byte[] bytes = out.toByteArray();
+
+        assertSameSequence(reference(bytes), StandardMidiFileParser.parse(bytes));
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.ishland.vanillamelody.common.playback.synth;
+
+import com.ishland.vanillamelody.common.playback.data.Note;
+import net.minecraft.util.Identifier;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * The steady state note loop must not allocate, notes reach receivers through the primitive path
+ */
+public class MinecraftMidiSynthesizerAllocationTest {
+
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 2_000;
+
+    private static final class CountingReceiver implements NoteReceiver {
+
+        private long notes = 0L;
+        private float checksum = 0.0f;
+
+        @Override
+        public void playNote(Note note, BooleanSupplier isDone) {
+            fail("boxed note path used");
+        }
+
+        @Override
+        public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+            this.notes++;
+            this.checksum += volume * rawPitch + panning;
+        }
+    }
+
+    private static void round(MinecraftMidiSynthesizer synthesizer, int round) {
+        final int key = 36 + (round % 48);
+        // piano, a long sound on another channel, and percussion
+        synthesizer.send(0x90, key, 100);
+        synthesizer.send(0x91, key + 7, 90);
+        synthesizer.send(0x99, 38, 110);
+        synthesizer.send(0xE0, 0, 64 + (round & 15));
+        synthesizer.tick();
+        synthesizer.send(0x80, key, 0);
+        synthesizer.send(0x81, key + 7, 0);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final CountingReceiver receiver = new CountingReceiver();
+        final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(receiver);
+        synthesizer.send(0xC1, 48, 0);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(synthesizer, i);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long notesBefore = receiver.notes;
+        // the first calls may allocate while being resolved
+        threads.getThreadAllocatedBytes(threadId);
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            round(synthesizer, i);
+        }
+        final long after = threads.getThreadAllocatedBytes(threadId);
+
+        assertTrue(receiver.notes > notesBefore);
+        assertEquals(0L, after - before, "bytes allocated by " + MEASURED_ROUNDS + " rounds");
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.ishland.vanillamelody.common.playback.synth;
+
+import com.ishland.vanillamelody.common.playback.data.Note;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.util.Identifier;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MinecraftMidiSynthesizerTest {
+
+    private static final class VoiceRecorder implements NoteReceiver {
+
+        private final LongArrayList voices = new LongArrayList();
+
+        @Override
+        public void playNote(Note note, BooleanSupplier isDone) {
+        }
+
+        @Override
+        public void playNote(MinecraftMidiSynthesizer synthesizer, Identifier sound, byte mcInstrument, float volume, int panning, float pitch, float rawPitch, long voice, long playableUntil) {
+            this.voices.add(voice);
+        }
+    }
+
+    @Test
+    public void retriggeredSustainedKeyReleasesPreviousVoice() {
+        final VoiceRecorder receiver = new VoiceRecorder();
+        final MinecraftMidiSynthesizer synthesizer = new MinecraftMidiSynthesizer(receiver);
+        synthesizer.setSustainedVoices(true);
+        // program 18 is a long sound in the default bank
+        synthesizer.send(0xC0, 18, 0);
+
+        synthesizer.send(0x90, 60, 100);
+        synthesizer.send(0x90, 60, 100);
+        assertEquals(2, receiver.voices.size());
+        final long first = receiver.voices.getLong(0);
+        final long second = receiver.voices.getLong(1);
+        assertTrue(synthesizer.isVoiceDone(first));
+        assertFalse(synthesizer.isVoiceDone(second));
+        assertTrue(synthesizer.isSustainedVoice(second));
+
+        synthesizer.send(0x80, 60, 0);
+        assertTrue(synthesizer.isVoiceDone(second));
+    }
+
+}